@@ -0,0 +1,58 @@
+package emulator.src;
+
+import java.util.Arrays;
+
+/**
+ * A HeightGrid stored on the heap as float[width][height]. The fastest option, as long as the screen fits in memory.
+ */
+class ArrayHeightGrid implements HeightGrid {
+    private final float[][] data;
+
+    ArrayHeightGrid(int width, int height){
+        data = new float[width][height];
+    }
+
+    /**
+     * Wraps an existing array, indexed [x][y], without copying it.
+     */
+    ArrayHeightGrid(float[][] data){
+        this.data = data;
+    }
+
+    /**
+     * @return The backing array, indexed [x][y]. Writes to it show up in the grid.
+     */
+    float[][] getData(){
+        return data;
+    }
+
+    public int getWidth(){
+        return data.length;
+    }
+
+    public int getHeight(){
+        return data[0].length;
+    }
+
+    public float get(int x, int y){
+        return data[x][y];
+    }
+
+    public void set(int x, int y, float value){
+        data[x][y] = value;
+    }
+
+    public void fill(float value){
+        for(float[] column : data){
+            Arrays.fill(column, value);
+        }
+    }
+
+    public void readColumn(int x, float[] destination){
+        System.arraycopy(data[x], 0, destination, 0, data[x].length);
+    }
+
+    public void writeColumn(int x, float[] source){
+        System.arraycopy(source, 0, data[x], 0, data[x].length);
+    }
+}
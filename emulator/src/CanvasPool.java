@@ -0,0 +1,91 @@
+package emulator.src;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A pool of EtchASketchCanvases keyed by grid dimensions. A fine stylus on a full-size etch-a-sketch needs grids of
+ * several hundred megabytes, so services that emulate many drawings should lease canvases from here rather than
+ * constructing new ones. A leased canvas is reset to a fresh coating in place. Safe to share between threads (each
+ * leased canvas should only be used by one thread at a time, of course).
+ */
+public class CanvasPool {
+    // idle canvases, keyed by gridKey(width, height)
+    private final Map<Long, ArrayDeque<EtchASketchCanvas>> idle = new HashMap<>();
+    // how many idle canvases of each grid size to hold on to. Anything released beyond this is left to the GC.
+    private final int maxIdlePerSize;
+
+    /**
+     * Creates a pool keeping at most one idle canvas of each grid size.
+     */
+    public CanvasPool(){
+        this(1);
+    }
+
+    /**
+     * @param maxIdlePerSize How many idle canvases of each grid size to keep. Typically the number of threads
+     *                       emulating at once.
+     */
+    public CanvasPool(int maxIdlePerSize){
+        this.maxIdlePerSize = maxIdlePerSize;
+    }
+
+    /**
+     * Leases a canvas ready to execute the given file. Reuses an idle canvas with the same grid dimensions if there
+     * is one, and constructs a new one otherwise.
+     * @param file The file to emulate. Its commands are not executed yet; call execute() on the result.
+     * @return A canvas, to be given back with release(...) when done.
+     */
+    public EtchASketchCanvas lease(EtchCommandFile file){
+        Vector2i gridSize = EtchASketchCanvas.getGridSize(file);
+        EtchASketchCanvas canvas = null;
+        synchronized(this){
+            ArrayDeque<EtchASketchCanvas> canvases = idle.get(gridKey(gridSize.x, gridSize.y));
+            if(canvases != null){
+                canvas = canvases.poll();
+            }
+        }
+        if(canvas == null){
+            return new EtchASketchCanvas(file);
+        }
+        canvas.reset(file);
+        // whoever had it before may have lowered the quality or recorded history
+        canvas.setQuality(QualityLevel.REFERENCE);
+        canvas.setHistoryLimit(0);
+        return canvas;
+    }
+
+    /**
+     * Leases an empty canvas, to be drawn on with push(...) or lineTo(...).
+     * @see EtchASketchCanvas#EtchASketchCanvas(double, double, double, double, double)
+     */
+    public EtchASketchCanvas lease(double etchWidth, double etchHeight, double pointerRadius, double startX, double startY){
+        return lease(EtchASketchCanvas.emptyFile(etchWidth, etchHeight, pointerRadius, startX, startY));
+    }
+
+    /**
+     * Gives a leased canvas back to the pool. The canvas must not be used afterwards.
+     */
+    public synchronized void release(EtchASketchCanvas canvas){
+        ArrayDeque<EtchASketchCanvas> canvases = idle.get(gridKey(canvas.getGridWidth(), canvas.getGridHeight()));
+        if(canvases == null){
+            canvases = new ArrayDeque<>();
+            idle.put(gridKey(canvas.getGridWidth(), canvas.getGridHeight()), canvases);
+        }
+        if(canvases.size() < maxIdlePerSize){
+            canvases.push(canvas);
+        }
+    }
+
+    /**
+     * Drops all idle canvases, freeing their grids.
+     */
+    public synchronized void clear(){
+        idle.clear();
+    }
+
+    private static long gridKey(int width, int height){
+        return ((long) width << 32) | (height & 0xffffffffL);
+    }
+}
@@ -0,0 +1,381 @@
+package emulator.src;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The recent history of a PowderScreen, one sparse delta per command, so the last commands can be undone (and
+ * redone) without emulating everything again from a blank screen.
+ *
+ * While a command runs, the old value of every cell it changes is remembered the first time the cell is touched.
+ * When it ends, the changed cells are stored as (index, old value, new value), with the indices sorted and
+ * stored as varint gaps, and the whole thing deflated. Undoing or redoing a command costs time proportional to
+ * the number of cells it changed. Only the last getCapacity() commands are kept; older ones are dropped.
+ *
+ * Commands [0, position) of the ring have been applied and can be undone, commands [position, size) were undone
+ * and can be redone until a new command is recorded.
+ */
+class DeltaLog {
+    private final HeightGrid screen;
+    // the ring of deltas, oldest at first
+    private final Delta[] deltas;
+    private int first = 0;
+    private int size = 0;
+    private int position = 0;
+    // the number of commands applied since the screen was last reset, see getCommandIndex()
+    private long commandIndex = 0;
+
+    // the command being recorded, or null
+    private Vector2d recordingFrom;
+    private final TouchedCells touched = new TouchedCells();
+    // reused between commands, since they are expensive to create
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private byte[] encodeBuffer = new byte[1024];
+    private byte[] compressBuffer = new byte[1024];
+
+    /**
+     * @param screen The heights to record changes of.
+     * @param capacity How many commands to keep.
+     */
+    DeltaLog(HeightGrid screen, int capacity){
+        this.screen = screen;
+        deltas = new Delta[capacity];
+    }
+
+    int getCapacity(){
+        return deltas.length;
+    }
+
+    /**
+     * @return How many commands can be undone.
+     */
+    int getUndoableCount(){
+        return position;
+    }
+
+    /**
+     * @return How many undone commands can be redone.
+     */
+    int getRedoableCount(){
+        return size - position;
+    }
+
+    /**
+     * @return The number of commands applied since the screen was reset, counting undone commands as not applied.
+     */
+    long getCommandIndex(){
+        return commandIndex;
+    }
+
+    /**
+     * Forgets everything, e.g. after the screen was reset or replaced.
+     */
+    void clear(){
+        Arrays.fill(deltas, null);
+        first = size = position = 0;
+        commandIndex = 0;
+        recordingFrom = null;
+        touched.clear();
+    }
+
+    boolean isRecording(){
+        return recordingFrom != null;
+    }
+
+    /**
+     * Starts recording a command. Commands that were undone can't be redone afterwards.
+     * @param pointer Where the pointer is before the command.
+     */
+    void begin(Vector2d pointer){
+        for(int i = position; i < size; i++){
+            deltas[(first + i) % deltas.length] = null;
+        }
+        size = position;
+        recordingFrom = new Vector2d(pointer);
+    }
+
+    /**
+     * Remembers the value of a cell before the current command changes it. Must be called before every change.
+     */
+    void touch(int x, int y, float oldValue){
+        touched.putIfAbsent((long) x * screen.getHeight() + y, oldValue);
+    }
+
+    /**
+     * Stops recording the current command and stores its delta, dropping the oldest one if the log is full.
+     * @param pointer Where the pointer is after the command.
+     */
+    void end(Vector2d pointer){
+        Delta delta = encode(recordingFrom, pointer);
+        recordingFrom = null;
+        touched.clear();
+        if(size == deltas.length){
+            deltas[first] = null;
+            first = (first + 1) % deltas.length;
+            size--;
+            position--;
+        }
+        deltas[(first + size) % deltas.length] = delta;
+        size++;
+        position++;
+        commandIndex++;
+    }
+
+    /**
+     * Restores the screen to before the last applied command.
+     * @return Where the pointer was before that command.
+     */
+    Vector2d undo(){
+        if(position == 0){
+            throw new IllegalStateException("Nothing to undo");
+        }
+        position--;
+        commandIndex--;
+        Delta delta = deltas[(first + position) % deltas.length];
+        apply(delta, true);
+        return new Vector2d(delta.pointerBefore);
+    }
+
+    /**
+     * Applies the first undone command again.
+     * @return Where the pointer was after that command.
+     */
+    Vector2d redo(){
+        if(position == size){
+            throw new IllegalStateException("Nothing to redo");
+        }
+        Delta delta = deltas[(first + position) % deltas.length];
+        position++;
+        commandIndex++;
+        apply(delta, false);
+        return new Vector2d(delta.pointerAfter);
+    }
+
+    /**
+     * Stores the cells touched by the current command that actually changed, as
+     * count, then varint gaps between the sorted indices, then the old values, then the new values.
+     */
+    private Delta encode(Vector2d pointerBefore, Vector2d pointerAfter){
+        long[] indices = touched.sortedKeys();
+        int count = 0;
+        int[] oldBits = new int[indices.length];
+        int[] newBits = new int[indices.length];
+        int height = screen.getHeight();
+        for(long index : indices){
+            int oldValue = Float.floatToRawIntBits(touched.get(index));
+            int newValue = Float.floatToRawIntBits(screen.get((int) (index / height), (int) (index % height)));
+            if(oldValue != newValue){
+                indices[count] = index;
+                oldBits[count] = oldValue;
+                newBits[count] = newValue;
+                count++;
+            }
+        }
+
+        // at most 10 bytes per varint, 8 for the values
+        int maxLength = 10 + 18 * count;
+        if(encodeBuffer.length < maxLength){
+            encodeBuffer = new byte[maxLength];
+        }
+        int length = putVarint(encodeBuffer, 0, count);
+        long previous = 0;
+        for(int i = 0; i < count; i++){
+            length = putVarint(encodeBuffer, length, indices[i] - previous);
+            previous = indices[i];
+        }
+        for(int i = 0; i < count; i++){
+            length = putInt(encodeBuffer, length, oldBits[i]);
+        }
+        for(int i = 0; i < count; i++){
+            length = putInt(encodeBuffer, length, newBits[i]);
+        }
+
+        deflater.reset();
+        deflater.setInput(encodeBuffer, 0, length);
+        deflater.finish();
+        int compressedLength = 0;
+        while(!deflater.finished()){
+            if(compressedLength == compressBuffer.length){
+                compressBuffer = Arrays.copyOf(compressBuffer, 2 * compressBuffer.length);
+            }
+            compressedLength += deflater.deflate(compressBuffer, compressedLength, compressBuffer.length - compressedLength);
+        }
+        return new Delta(Arrays.copyOf(compressBuffer, compressedLength), length, pointerBefore, pointerAfter);
+    }
+
+    /**
+     * Writes the old (when undoing) or new values of a delta back to the screen.
+     */
+    private void apply(Delta delta, boolean undo){
+        if(encodeBuffer.length < delta.length){
+            encodeBuffer = new byte[delta.length];
+        }
+        inflater.reset();
+        inflater.setInput(delta.data);
+        try {
+            int length = 0;
+            while(length < delta.length){
+                int inflated = inflater.inflate(encodeBuffer, length, delta.length - length);
+                if(inflated == 0 && (inflater.finished() || inflater.needsInput())){
+                    throw new IllegalStateException("Truncated delta");
+                }
+                length += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt delta", e);
+        }
+
+        long[] cursor = new long[1];
+        int count = (int) getVarint(encodeBuffer, cursor);
+        long[] indices = new long[count];
+        long index = 0;
+        for(int i = 0; i < count; i++){
+            index += getVarint(encodeBuffer, cursor);
+            indices[i] = index;
+        }
+        // skip the old values when redoing
+        int offset = (int) cursor[0] + (undo ? 0 : 4 * count);
+        int height = screen.getHeight();
+        for(int i = 0; i < count; i++){
+            screen.set((int) (indices[i] / height), (int) (indices[i] % height), Float.intBitsToFloat(getInt(encodeBuffer, offset + 4 * i)));
+        }
+    }
+
+    private static int putVarint(byte[] buffer, int offset, long value){
+        while((value & ~0x7FL) != 0){
+            buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * @param cursor The offset to read from, advanced past the varint.
+     */
+    private static long getVarint(byte[] buffer, long[] cursor){
+        int offset = (int) cursor[0];
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer[offset++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while((b & 0x80) != 0);
+        cursor[0] = offset;
+        return value;
+    }
+
+    private static int putInt(byte[] buffer, int offset, int value){
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >>> 8);
+        buffer[offset + 2] = (byte) (value >>> 16);
+        buffer[offset + 3] = (byte) (value >>> 24);
+        return offset + 4;
+    }
+
+    private static int getInt(byte[] buffer, int offset){
+        return (buffer[offset] & 0xFF) | (buffer[offset + 1] & 0xFF) << 8 | (buffer[offset + 2] & 0xFF) << 16 | (buffer[offset + 3] & 0xFF) << 24;
+    }
+
+    /**
+     * What one command changed.
+     */
+    private static class Delta {
+        // the deflated encoding, see encode(...)
+        final byte[] data;
+        // the length of the encoding before deflating
+        final int length;
+        final Vector2d pointerBefore;
+        final Vector2d pointerAfter;
+
+        Delta(byte[] data, int length, Vector2d pointerBefore, Vector2d pointerAfter){
+            this.data = data;
+            this.length = length;
+            this.pointerBefore = new Vector2d(pointerBefore);
+            this.pointerAfter = new Vector2d(pointerAfter);
+        }
+    }
+
+    /**
+     * The cells touched by the current command and their values before it, in an open addressing table
+     * (a command touches at most a few thousand cells, but there are many commands).
+     */
+    private static class TouchedCells {
+        private long[] keys = new long[1024];
+        private float[] values = new float[1024];
+        private boolean[] occupied = new boolean[1024];
+        private int size = 0;
+
+        void putIfAbsent(long key, float value){
+            if(2 * (size + 1) > keys.length){
+                grow();
+            }
+            int slot = slot(key);
+            if(!occupied[slot]){
+                occupied[slot] = true;
+                keys[slot] = key;
+                values[slot] = value;
+                size++;
+            }
+        }
+
+        float get(long key){
+            return values[slot(key)];
+        }
+
+        long[] sortedKeys(){
+            long[] result = new long[size];
+            int n = 0;
+            for(int i = 0; i < keys.length; i++){
+                if(occupied[i]){
+                    result[n++] = keys[i];
+                }
+            }
+            Arrays.sort(result);
+            return result;
+        }
+
+        void clear(){
+            if(size > 0){
+                Arrays.fill(occupied, false);
+                size = 0;
+            }
+        }
+
+        private int slot(long key){
+            int mask = keys.length - 1;
+            int slot = (int) (mix(key) & mask);
+            while(occupied[slot] && keys[slot] != key){
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void grow(){
+            long[] oldKeys = keys;
+            float[] oldValues = values;
+            boolean[] oldOccupied = occupied;
+            keys = new long[2 * oldKeys.length];
+            values = new float[2 * oldKeys.length];
+            occupied = new boolean[2 * oldKeys.length];
+            size = 0;
+            for(int i = 0; i < oldKeys.length; i++){
+                if(oldOccupied[i]){
+                    putIfAbsent(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static long mix(long key){
+            key ^= key >>> 33;
+            key *= 0xff51afd7ed558ccdL;
+            key ^= key >>> 33;
+            return key;
+        }
+    }
+}
\ No newline at end of file
@@ -1,5 +1,6 @@
 package emulator.src;
 
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
@@ -11,12 +12,19 @@ import com.google.gson.Gson;
  * 
  * @author Alan Koval
  */
-class Emulator {
+public class Emulator {
+    // system property naming a file to keep the screen in, for screens too large for the heap (see MappedHeightGrid)
+    static final String GRID_FILE_PROPERTY = "emulator.gridFile";
+    // system property naming a QualityLevel to emulate at, REFERENCE if not given
+    static final String QUALITY_PROPERTY = "emulator.quality";
+
     /**
      * Generates an image from the given .json data file.
-     * @param args Two arguments required:
+     * @param args Two arguments required, one optional:
      *      1. A relative file path specifying the .json data file.
-     *      2. An image output path.
+     *      2. An output path. Paths ending in .png or .jpg produce an image, paths ending in .npy or .f32 
+     *         produce the raw height field (see HeightFieldIO).
+     *      3. (Optional) A height field (.npy, or raw floats with a sidecar) to start from instead of a blank screen.
      */
     public static void main(String[] args){
         String jsonFilePath = args[0];
@@ -28,14 +36,34 @@ class Emulator {
                 // Convert JSON File to Java Object
                 EtchCommandFile file = gson.fromJson(reader, EtchCommandFile.class);
                 // make a canvas and draw to it with lines from the given file 
-                EtchASketchCanvas sketcher = new EtchASketchCanvas(file);
+                // store the screen in a memory-mapped file instead of on the heap if asked to
+                String gridFile = System.getProperty(GRID_FILE_PROPERTY);
+                EtchASketchCanvas sketcher = gridFile == null ? new EtchASketchCanvas(file) : new EtchASketchCanvas(file, new File(gridFile));
+                String quality = System.getProperty(QUALITY_PROPERTY);
+                if(quality != null){
+                    sketcher.setQuality(QualityLevel.valueOf(quality.toUpperCase()));
+                }
+                if(args.length > 2){
+                    System.out.println("Seeding screen from " + args[2] + ".");
+                    sketcher.seedScreen(args[2]);
+                }
                 sketcher.execute();
-                System.out.println("Writing result to image file.");
-                sketcher.writeImageToFile(outputFilePath);
+                if(isHeightFieldPath(outputFilePath)){
+                    System.out.println("Writing result to height field file.");
+                    sketcher.writeHeightFieldToFile(outputFilePath);
+                } else {
+                    System.out.println("Writing result to image file.");
+                    sketcher.writeImageToFile(outputFilePath);
+                }
                 System.out.println("Done!");
 
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
+
+    private static boolean isHeightFieldPath(String path){
+        String lower = path.toLowerCase();
+        return lower.endsWith(".npy") || lower.endsWith(".f32");
+    }
 }
\ No newline at end of file
@@ -1,49 +1,309 @@
 package emulator.src;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.awt.*;
 
 /**
  * Class for dealing with higher level drawing commands. Lots of data shuffling, not much substance.
  * 
+ * This is also the entry point for using the emulator from other Java code: configure a canvas once (etch-a-sketch 
+ * size and pointer radius), then reset it and push commands as many times as you like. The grids are allocated 
+ * once per canvas, so keep canvases around (see CanvasPool) instead of constructing new ones. Not thread safe.
+ * 
  * @author Alan Koval
  */
-class EtchASketchCanvas {
+public class EtchASketchCanvas {
     // PowerScreen does all the heavy lifting
     PowderScreen simulator;
     // The list of commands extracted from the input file
     private List<EtchCommand> commands;
+    // the width/height of the etch-a-sketch and the radius of the pointer, in cm. Fixed until the next reset(file).
+    private Vector2d etchExtent;
+    private double pointerRadius;
     // An etch-a-sketch has an aluminum coating which is scratched off to form the image. 
     // This is the default "shaken" coating thickness, i.e. when the etch-a-sketch is empty.
-    private final float DEFAULT_COATING_THICKNESS = .01f;
+    static final float DEFAULT_COATING_THICKNESS = .01f;
 
     /**
      * Prepare an EtchASketchCanvas with the given file.
      * @param file An EtchCommandFile extracted from an input .json file
      */
-    EtchASketchCanvas(EtchCommandFile file){
+    public EtchASketchCanvas(EtchCommandFile file){
         Vector2d pointerLocation = new Vector2d(file.startX, file.startY);
-        Vector2d etchExtent = new Vector2d(file.etchWidth, file.etchHeight);
+        this.etchExtent = new Vector2d(file.etchWidth, file.etchHeight);
+        this.pointerRadius = file.pointerRadius;
         this.commands = file.commands;
 
         // args list for your convenience:
         // float coatingThickness, Vector2d screenExtent, double pointsPerUnit, Vector2d initPointerLocation, float pointerRadius
-        simulator = new PowderScreen(DEFAULT_COATING_THICKNESS, etchExtent, (float) (5 / file.pointerRadius), pointerLocation, (float) file.pointerRadius);
+        simulator = new PowderScreen(DEFAULT_COATING_THICKNESS, etchExtent, getPointsPerUnit(file), pointerLocation, (float) file.pointerRadius);
+    }
+
+    /**
+     * Prepare an EtchASketchCanvas with the given file, storing the aluminum heights in a memory-mapped file 
+     * instead of on the heap. Use this for screens too large for the heap; the pages around the pointer are 
+     * kept in memory by the OS and the rest can live on disk. See MappedHeightGrid.
+     * @param file An EtchCommandFile extracted from an input .json file
+     * @param gridFile Where to store the heights. Created if it doesn't exist, and overwritten.
+     */
+    public EtchASketchCanvas(EtchCommandFile file, File gridFile) throws IOException {
+        Vector2i gridSize = getGridSize(file);
+        this.etchExtent = new Vector2d(file.etchWidth, file.etchHeight);
+        this.pointerRadius = file.pointerRadius;
+        this.commands = file.commands;
+        simulator = new PowderScreen(new MappedHeightGrid(gridFile, gridSize.x, gridSize.y), DEFAULT_COATING_THICKNESS, 
+                                     etchExtent, new Vector2d(file.startX, file.startY), (float) file.pointerRadius);
+    }
+
+    /**
+     * Prepare an empty EtchASketchCanvas, to be drawn on with push(...) or lineTo(...).
+     * @param etchWidth The width of the etch-a-sketch, in cm
+     * @param etchHeight The height of the etch-a-sketch, in cm
+     * @param pointerRadius The thickness of the lines, in cm
+     * @param startX The starting x-coordinate of the pointer
+     * @param startY The starting y-coordinate of the pointer
+     */
+    public EtchASketchCanvas(double etchWidth, double etchHeight, double pointerRadius, double startX, double startY){
+        this(emptyFile(etchWidth, etchHeight, pointerRadius, startX, startY));
+    }
+
+    /**
+     * @return True if reset(file) can reuse this canvas, i.e. the file needs the same grid dimensions.
+     */
+    public boolean canReset(EtchCommandFile file){
+        Vector2i gridSize = getGridSize(file);
+        return gridSize.x == getGridWidth() && gridSize.y == getGridHeight();
+    }
+
+    /**
+     * Prepare this canvas for a new file by restoring a fresh coating in place. Much cheaper than constructing 
+     * a new canvas, since the grids are refilled rather than reallocated.
+     * @param file An EtchCommandFile for which canReset(file) is true.
+     */
+    public void reset(EtchCommandFile file){
+        if(!canReset(file)){
+            throw new IllegalArgumentException("File needs a " + getGridSize(file) + " grid, which does not match this canvas");
+        }
+        this.etchExtent = new Vector2d(file.etchWidth, file.etchHeight);
+        this.pointerRadius = file.pointerRadius;
+        this.commands = file.commands;
+        simulator.reset(DEFAULT_COATING_THICKNESS, etchExtent, new Vector2d(file.startX, file.startY), (float) pointerRadius);
+    }
+
+    /**
+     * Shake the etch-a-sketch: restore a fresh coating in place and move the pointer, keeping the size and 
+     * pointer radius. Clears the commands given by the constructor or the last reset(file).
+     * @param startX The starting x-coordinate of the pointer
+     * @param startY The starting y-coordinate of the pointer
+     */
+    public void reset(double startX, double startY){
+        reset(emptyFile(etchExtent.x, etchExtent.y, pointerRadius, startX, startY));
+    }
+
+    /**
+     * @return The dimensions of the grid that emulating the given file requires.
+     */
+    static Vector2i getGridSize(EtchCommandFile file){
+        return PowderScreen.getGridSize(new Vector2d(file.etchWidth, file.etchHeight), getPointsPerUnit(file));
+    }
+
+    private static float getPointsPerUnit(EtchCommandFile file){
+        return (float) (5 / file.pointerRadius);
+    }
+
+    static EtchCommandFile emptyFile(double etchWidth, double etchHeight, double pointerRadius, double startX, double startY){
+        EtchCommandFile file = new EtchCommandFile();
+        file.etchWidth = etchWidth;
+        file.etchHeight = etchHeight;
+        file.pointerRadius = pointerRadius;
+        file.startX = startX;
+        file.startY = startY;
+        file.commands = new ArrayList<>();
+        return file;
     }
 
     /**
      * Execute all commands in the EtchCommandFile given in the constructor
      */
-    void execute(){
+    public void execute(){
+        execute(true);
+    }
+
+    /**
+     * Execute all commands in the EtchCommandFile given in the constructor (or the last reset)
+     * @param printProgress Whether to print a line after every command. Turn off when running many canvases.
+     */
+    public void execute(boolean printProgress){
         int counter = 1;
         int size = commands.size();
         for(EtchCommand command : commands){
             executeCommand(command);
-            System.out.println("Finished command " + counter + " / " + size + ".");
+            if(printProgress){
+                System.out.println("Finished command " + counter + " / " + size + ".");
+            }
             counter++;
         }
     }
 
+    /**
+     * Choose how closely to follow the aluminum for everything executed from now on, trading fidelity for speed. 
+     * New canvases start at QualityLevel.REFERENCE; reset(...) doesn't change the level.
+     */
+    public void setQuality(QualityLevel quality){
+        simulator.setQuality(quality);
+    }
+
+    public QualityLevel getQuality(){
+        return simulator.getQuality();
+    }
+
+    /**
+     * Keep a compact record of what the most recent commands changed, so they can be undone (see undo(...) and 
+     * seek(...)) in time proportional to the changes rather than emulating everything again. Off by default.
+     * @param commands How many of the most recent commands to keep, or 0 to stop recording. Changing the limit 
+     *                 forgets the commands recorded so far; so does reset(...) or seedScreen(...).
+     */
+    public void setHistoryLimit(int commands){
+        simulator.setHistoryLimit(commands);
+    }
+
+    /**
+     * @return The number of commands executed since the last reset (or since history was enabled), not counting 
+     *         undone ones. This is the index seek(...) takes.
+     */
+    public long getHistoryPosition(){
+        return requireHistory().getCommandIndex();
+    }
+
+    /**
+     * @return How many commands undo(...) can currently undo.
+     */
+    public int getUndoableCount(){
+        return requireHistory().getUndoableCount();
+    }
+
+    /**
+     * @return How many undone commands redo(...) can currently redo.
+     */
+    public int getRedoableCount(){
+        return requireHistory().getRedoableCount();
+    }
+
+    /**
+     * Undo the most recent commands, restoring the aluminum and the pointer to how they were before them.
+     * @param commands How many commands to undo, at most getUndoableCount().
+     */
+    public void undo(int commands){
+        if(commands < 0 || commands > getUndoableCount()){
+            throw new IllegalArgumentException("Can't undo " + commands + " commands, only " + getUndoableCount() + " are recorded");
+        }
+        simulator.undo(commands);
+    }
+
+    /**
+     * Execute undone commands again. Only possible until a new command is executed.
+     * @param commands How many commands to redo, at most getRedoableCount().
+     */
+    public void redo(int commands){
+        if(commands < 0 || commands > getRedoableCount()){
+            throw new IllegalArgumentException("Can't redo " + commands + " commands, only " + getRedoableCount() + " were undone");
+        }
+        simulator.redo(commands);
+    }
+
+    /**
+     * Undo or redo commands until getHistoryPosition() is the given index, e.g. to scrub through recent history.
+     * @param commandIndex The number of commands that should be applied, within 
+     *                     [getHistoryPosition() - getUndoableCount(), getHistoryPosition() + getRedoableCount()].
+     */
+    public void seek(long commandIndex){
+        long position = getHistoryPosition();
+        if(commandIndex < position){
+            undo((int) Math.min(Integer.MAX_VALUE, position - commandIndex));
+        } else if(commandIndex > position){
+            redo((int) Math.min(Integer.MAX_VALUE, commandIndex - position));
+        }
+    }
+
+    private DeltaLog requireHistory(){
+        DeltaLog history = simulator.getHistory();
+        if(history == null){
+            throw new IllegalStateException("History is not being recorded, see setHistoryLimit(...)");
+        }
+        return history;
+    }
+
+    /**
+     * Execute a single command right away, continuing from wherever the pointer is now.
+     * @param command The command to execute.
+     */
+    public void push(EtchCommand command){
+        executeCommand(command);
+    }
+
+    /**
+     * Execute the given commands in order right away, continuing from wherever the pointer is now.
+     * @param commands The commands to execute.
+     */
+    public void push(List<EtchCommand> commands){
+        for(EtchCommand command : commands){
+            executeCommand(command);
+        }
+    }
+
+    /**
+     * Draw a straight line from the current pointer location to (x, y).
+     */
+    public void lineTo(double x, double y){
+        simulator.moveTo(new Vector2d(x, y));
+    }
+
+    /**
+     * @return A copy of the current location of the pointer.
+     */
+    public Vector2d getPointerLocation(){
+        return new Vector2d(simulator.getPointerLocation());
+    }
+
+    /**
+     * @return The number of grid points along x, i.e. getHeights().length
+     */
+    public int getGridWidth(){
+        return simulator.getGrid().getWidth();
+    }
+
+    /**
+     * @return The number of grid points along y, i.e. getHeights()[0].length
+     */
+    public int getGridHeight(){
+        return simulator.getGrid().getHeight();
+    }
+
+    /**
+     * @return The live aluminum heights, indexed [x][y] with y pointing up. Changes as commands are executed and 
+     *         must not be modified; use copyHeights(...) to keep a snapshot. For canvases stored in a file this 
+     *         is a copy of the whole screen, so prefer copyHeights(...) there.
+     */
+    public float[][] getHeights(){
+        return simulator.getScreen();
+    }
+
+    /**
+     * Copies the aluminum heights into the given array without allocating.
+     * @param destination An array of size getGridWidth() x getGridHeight()
+     * @return destination
+     */
+    public float[][] copyHeights(float[][] destination){
+        HeightGrid grid = simulator.getGrid();
+        for(int x = 0; x < grid.getWidth(); x++){
+            grid.readColumn(x, destination[x]);
+        }
+        return destination;
+    }
+
     /**
      * Execute a single command.
      * @param command The command to execute.
@@ -54,26 +314,69 @@ class EtchASketchCanvas {
         }
     }
 
+    /**
+     * Start from a previously saved aluminum distribution instead of a freshly shaken screen.
+     * @param heights A height field, e.g. from HeightFieldIO.read(...), with the same dimensions as this canvas.
+     */
+    public void seedScreen(float[][] heights){
+        simulator.setScreen(heights);
+    }
+
+    /**
+     * Like seedScreen(float[][]), straight from a file written by writeHeightFieldToFile(...). The heights are 
+     * streamed into the grid column by column, so canvases stored in a file (see EtchASketchCanvas(file, gridFile)) 
+     * can be seeded with height fields larger than the heap.
+     * @param path A .npy file, or raw floats with a .json sidecar. Must have the same dimensions as this canvas.
+     */
+    public void seedScreen(String path) throws IOException {
+        simulator.readScreen(path);
+    }
+
+    /**
+     * Write the raw aluminum heights (no tone mapping or clamping) to a .npy file, or to raw floats with a 
+     * .json sidecar for any other extension. See HeightFieldIO.
+     * @param relativePath A relative file path.
+     */
+    public void writeHeightFieldToFile(String relativePath) throws IOException {
+        HeightFieldIO.write(simulator.getGrid(), relativePath);
+    }
+
     /**
      * Write the result of the emulation to an image file. The number of pixels will be determined by the 
      * pointerRadius and etchExtent given in the input file for maximum precision.
      * @param relativePath A relative file path, ending in some common lossless image format (I've tested .png).
      */
-    void writeImageToFile(String relativePath){
-        float[][] data = simulator.getScreen();
-        Picture pic = new Picture(data.length, data[0].length);
-        for(int x = 0; x < data.length; x++){
-            for(int y = 0; y < data[x].length; y++){
-                float val = data[x][y] / DEFAULT_COATING_THICKNESS;
-                val = Math.min(.7f, val);
-                val = Math.max(val, 0);
-                float computedVal = .8f*val + .3f;
+    public void writeImageToFile(String relativePath){
+        toPicture().save(relativePath);
+    }
+
+    /**
+     * Render the result of the emulation, one pixel per grid point, the same way writeImageToFile does.
+     * @return A new Picture of size getGridWidth() x getGridHeight().
+     */
+    public Picture toPicture(){
+        HeightGrid data = simulator.getGrid();
+        Picture pic = new Picture(data.getWidth(), data.getHeight());
+        for(int x = 0; x < data.getWidth(); x++){
+            for(int y = 0; y < data.getHeight(); y++){
+                float computedVal = toneMap(data.get(x, y));
                 Color color = new Color(computedVal, computedVal, computedVal);
                 // switch the y axis to be upright once again
-                pic.set(x, data[x].length - y - 1, color);
+                pic.set(x, data.getHeight() - y - 1, color);
             }
         }
+        return pic;
+    }
 
-        pic.save(relativePath);
+    /**
+     * Maps an aluminum height to the gray level used in output images.
+     * @param height A value of PowderScreen.getScreen()
+     * @return A gray level in [0, 1] (in practice [.3, .86])
+     */
+    public static float toneMap(float height){
+        float val = height / DEFAULT_COATING_THICKNESS;
+        val = Math.min(.7f, val);
+        val = Math.max(val, 0);
+        return .8f*val + .3f;
     }
 }
\ No newline at end of file
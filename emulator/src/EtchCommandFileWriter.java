@@ -0,0 +1,73 @@
+package emulator.src;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Writes an EtchCommandFile as .json one command at a time, for command lists too long to build in memory first.
+ * The output is the same as Gson would produce for the equivalent EtchCommandFile, so Emulator reads it as usual.
+ */
+public class EtchCommandFileWriter implements Closeable {
+    private final JsonWriter json;
+    // the number of commands written so far
+    private long commandCount = 0;
+
+    /**
+     * Writes the header fields of the file and opens the command list.
+     * @param out Where to write the .json. Closed by close().
+     * @see EtchCommandFile for the meaning of the remaining parameters.
+     */
+    public EtchCommandFileWriter(Writer out, double startX, double startY, double etchWidth, double etchHeight, double pointerRadius) throws IOException {
+        json = new JsonWriter(out);
+        json.beginObject();
+        json.name("startX").value(startX);
+        json.name("startY").value(startY);
+        json.name("etchWidth").value(etchWidth);
+        json.name("etchHeight").value(etchHeight);
+        json.name("pointerRadius").value(pointerRadius);
+        json.name("commands").beginArray();
+    }
+
+    /**
+     * Appends a LINE command ending at (x, y).
+     */
+    public void lineTo(double x, double y) throws IOException {
+        json.beginObject();
+        json.name("type").value(EtchCommand.COMMAND_TYPE.LINE.name());
+        json.name("lineEnd").beginObject();
+        json.name("x").value(x);
+        json.name("y").value(y);
+        json.endObject();
+        json.endObject();
+        commandCount++;
+    }
+
+    /**
+     * Appends a command.
+     */
+    public void write(EtchCommand command) throws IOException {
+        if(command.type == EtchCommand.COMMAND_TYPE.LINE){
+            lineTo(command.lineEnd.x, command.lineEnd.y);
+        }
+    }
+
+    /**
+     * @return The number of commands written so far.
+     */
+    public long getCommandCount(){
+        return commandCount;
+    }
+
+    /**
+     * Closes the command list and the file.
+     */
+    @Override
+    public void close() throws IOException {
+        json.endArray();
+        json.endObject();
+        json.close();
+    }
+}
@@ -0,0 +1,15 @@
+package emulator.src;
+
+/**
+ * The structure of the .json sidecar written next to a raw height field by HeightFieldIO.
+ */
+public class HeightFieldHeader {
+    public static final String FLOAT32 = "float32";
+    public static final String LITTLE_ENDIAN = "little";
+    public static final String BIG_ENDIAN = "big";
+
+    public int width; // the number of columns, i.e. screen.length
+    public int height; // the number of rows, i.e. screen[0].length
+    public String dtype; // the element type, only "float32" for now
+    public String byteOrder; // "little" or "big"
+}
@@ -0,0 +1,331 @@
+package emulator.src;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.gson.Gson;
+
+/**
+ * Reads and writes the raw aluminum height field (i.e. PowderScreen.getScreen()) without any tone mapping.
+ * Two formats are supported:
+ *      1. NumPy .npy files (little-endian float32, shape (width, height)), so that screen[x][y] == array[x, y] in Python.
+ *      2. Raw little-endian float32 files with a small .json sidecar (see HeightFieldHeader) describing the layout.
+ * Both are written and read through a memory-mapped FileChannel, one bulk copy per column of the screen.
+ * Grids stored in a file (MappedHeightGrid) are written and read column by column without loading the whole screen.
+ */
+public class HeightFieldIO {
+    // every .npy file starts with these bytes, followed by the version (1.0) and the header length
+    private static final byte[] NPY_MAGIC = {(byte) 0x93, 'N', 'U', 'M', 'P', 'Y'};
+    // the preamble (magic, version, header length) plus header is padded to a multiple of this
+    private static final int NPY_ALIGNMENT = 64;
+    private static final int NPY_PREAMBLE_LENGTH = NPY_MAGIC.length + 4;
+    // the largest region mapped at once, in bytes
+    private static final long MAX_MAPPING = 1L << 30;
+    private static final Pattern NPY_SHAPE = Pattern.compile("'shape'\\s*:\\s*\\(\\s*(\\d+)\\s*,\\s*(\\d+)\\s*,?\\s*\\)");
+
+    private HeightFieldIO(){ }
+
+    /**
+     * Writes the height field to the given path. The format is chosen by the file extension: ".npy" writes a
+     * NumPy array, anything else writes raw floats plus a sidecar (see sidecarPath).
+     * @param data The height field, indexed data[x][y]. Every column must have the same length.
+     * @param path The output file path.
+     */
+    public static void write(float[][] data, String path) throws IOException {
+        write(new ArrayHeightGrid(data), path);
+    }
+
+    /**
+     * Like write(float[][], String), straight from a grid, which may be larger than the heap.
+     */
+    static void write(HeightGrid grid, String path) throws IOException {
+        if(isNpyPath(path)){
+            writeNpy(grid, path);
+        } else {
+            writeRaw(grid, path);
+        }
+    }
+
+    /**
+     * Reads a height field written by write(...) (or by numpy.save with dtype '<f4' and a 2d shape).
+     * @param path The input file path. Files that do not start with the .npy magic bytes are assumed to be raw
+     *             floats and require a sidecar.
+     * @return The height field, indexed [x][y].
+     */
+    public static float[][] read(String path) throws IOException {
+        if(hasNpyMagic(path)){
+            return readNpy(path);
+        }
+        return readRaw(path);
+    }
+
+    /**
+     * Like read(String), but copies the height field into the given grid column by column instead of allocating
+     * it on the heap, so grids larger than the heap can be filled from a file.
+     * @param grid Where to put the heights. Must have the same dimensions as the file.
+     */
+    static void read(String path, HeightGrid grid) throws IOException {
+        GridProvider matchingGrid = (width, height) -> {
+            if(width != grid.getWidth() || height != grid.getHeight()){
+                throw new IllegalArgumentException("Expected a " + grid.getWidth() + "x" + grid.getHeight() + 
+                                                   " height field, got " + width + "x" + height + " in " + path);
+            }
+            return grid;
+        };
+        if(hasNpyMagic(path)){
+            readNpy(path, matchingGrid);
+        } else {
+            readRaw(path, matchingGrid);
+        }
+    }
+
+    /**
+     * Writes the height field as a NumPy version 1.0 .npy file with dtype '<f4' and shape (width, height).
+     */
+    public static void writeNpy(float[][] data, String path) throws IOException {
+        writeNpy(new ArrayHeightGrid(data), path);
+    }
+
+    static void writeNpy(HeightGrid grid, String path) throws IOException {
+        int width = grid.getWidth();
+        int height = grid.getHeight();
+        String header = "{'descr': '<f4', 'fortran_order': False, 'shape': (" + width + ", " + height + "), }";
+        // pad with spaces so that the data starts on an aligned offset, terminating in a newline
+        int unpadded = NPY_PREAMBLE_LENGTH + header.length() + 1;
+        int padding = (NPY_ALIGNMENT - unpadded % NPY_ALIGNMENT) % NPY_ALIGNMENT;
+        StringBuilder headerBuilder = new StringBuilder(header);
+        for(int i = 0; i < padding; i++){
+            headerBuilder.append(' ');
+        }
+        headerBuilder.append('\n');
+        byte[] headerBytes = headerBuilder.toString().getBytes(StandardCharsets.US_ASCII);
+
+        ByteBuffer preamble = ByteBuffer.allocate(NPY_PREAMBLE_LENGTH + headerBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+        preamble.put(NPY_MAGIC);
+        preamble.put((byte) 1);
+        preamble.put((byte) 0);
+        preamble.putShort((short) headerBytes.length);
+        preamble.put(headerBytes);
+        preamble.flip();
+        try (FileChannel channel = openForWriting(path)) {
+            channel.write(preamble, 0);
+            putColumns(channel, preamble.limit(), grid);
+        }
+    }
+
+    /**
+     * Reads a .npy file containing a 2d little-endian float32 array in C order.
+     */
+    public static float[][] readNpy(String path) throws IOException {
+        return ((ArrayHeightGrid) readNpy(path, HeightFieldIO::newArrayGrid)).getData();
+    }
+
+    private static HeightGrid readNpy(String path, GridProvider grids) throws IOException {
+        try (FileChannel channel = FileChannel.open(new File(path).toPath(), StandardOpenOption.READ)) {
+            // version 1.0 stores the header length in 2 bytes, later versions in 4
+            ByteBuffer preamble = readBytes(channel, 0, NPY_PREAMBLE_LENGTH + 2, path);
+            int majorVersion = preamble.get(NPY_MAGIC.length);
+            long headerStart;
+            int headerLength;
+            if(majorVersion == 1){
+                headerStart = NPY_PREAMBLE_LENGTH;
+                headerLength = preamble.getShort(NPY_MAGIC.length + 2) & 0xffff;
+            } else {
+                headerStart = NPY_PREAMBLE_LENGTH + 2;
+                headerLength = preamble.getInt(NPY_MAGIC.length + 2);
+            }
+            ByteBuffer headerBytes = readBytes(channel, headerStart, headerLength, path);
+            String header = new String(headerBytes.array(), StandardCharsets.US_ASCII);
+
+            if(!header.contains("'descr': '<f4'") || header.contains("'fortran_order': True")){
+                throw new IOException("Only C-ordered little-endian float32 .npy files are supported: " + path);
+            }
+            Matcher shape = NPY_SHAPE.matcher(header);
+            if(!shape.find()){
+                throw new IOException("Expected a 2d array in " + path + ", got header " + header.trim());
+            }
+            HeightGrid grid = grids.forSize(Integer.parseInt(shape.group(1)), Integer.parseInt(shape.group(2)));
+            getColumns(channel, headerStart + headerLength, ByteOrder.LITTLE_ENDIAN, grid, path);
+            return grid;
+        }
+    }
+
+    /**
+     * Writes the height field as raw little-endian float32 values, column by column (screen[0][0], screen[0][1], ...),
+     * along with a .json sidecar describing the layout.
+     */
+    public static void writeRaw(float[][] data, String path) throws IOException {
+        writeRaw(new ArrayHeightGrid(data), path);
+    }
+
+    static void writeRaw(HeightGrid grid, String path) throws IOException {
+        int width = grid.getWidth();
+        int height = grid.getHeight();
+        try (FileChannel channel = openForWriting(path)) {
+            putColumns(channel, 0, grid);
+        }
+
+        HeightFieldHeader header = new HeightFieldHeader();
+        header.width = width;
+        header.height = height;
+        header.dtype = HeightFieldHeader.FLOAT32;
+        header.byteOrder = HeightFieldHeader.LITTLE_ENDIAN;
+        try (PrintWriter out = new PrintWriter(sidecarPath(path))) {
+            out.print(new Gson().toJson(header));
+        }
+    }
+
+    /**
+     * Reads a raw float32 height field using the layout described by its sidecar.
+     */
+    public static float[][] readRaw(String path) throws IOException {
+        return ((ArrayHeightGrid) readRaw(path, HeightFieldIO::newArrayGrid)).getData();
+    }
+
+    private static HeightGrid readRaw(String path, GridProvider grids) throws IOException {
+        HeightFieldHeader header;
+        try (Reader reader = new FileReader(sidecarPath(path))) {
+            header = new Gson().fromJson(reader, HeightFieldHeader.class);
+        }
+        if(header == null || !HeightFieldHeader.FLOAT32.equals(header.dtype)){
+            throw new IOException("Missing or unsupported sidecar for " + path);
+        }
+        ByteOrder order = HeightFieldHeader.BIG_ENDIAN.equals(header.byteOrder) ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        try (FileChannel channel = FileChannel.open(new File(path).toPath(), StandardOpenOption.READ)) {
+            HeightGrid grid = grids.forSize(header.width, header.height);
+            getColumns(channel, 0, order, grid, path);
+            return grid;
+        }
+    }
+
+    /**
+     * @return The sidecar path used for a raw height field, i.e. "out.f32" -> "out.f32.json".
+     */
+    public static String sidecarPath(String rawPath){
+        return rawPath + ".json";
+    }
+
+    static boolean isNpyPath(String path){
+        return path.toLowerCase().endsWith(".npy");
+    }
+
+    private static boolean hasNpyMagic(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(new File(path).toPath(), StandardOpenOption.READ)) {
+            if(channel.size() < NPY_MAGIC.length){
+                return false;
+            }
+            ByteBuffer magic = ByteBuffer.allocate(NPY_MAGIC.length);
+            channel.read(magic, 0);
+            for(int i = 0; i < NPY_MAGIC.length; i++){
+                if(magic.get(i) != NPY_MAGIC[i]){
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static HeightGrid newArrayGrid(int width, int height){
+        return new ArrayHeightGrid(new float[width][height]);
+    }
+
+    private static FileChannel openForWriting(String path) throws IOException {
+        return FileChannel.open(new File(path).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Reads length bytes of the file, starting at position.
+     */
+    private static ByteBuffer readBytes(FileChannel channel, long position, int length, String path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer, position + buffer.position()) < 0){
+                throw new IOException("Unexpected end of file " + path);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static long dataLength(int width, int height){
+        return (long) width * height * Float.BYTES;
+    }
+
+    /**
+     * Copies the columns of the grid into the file as little-endian floats, starting at offset. A single mapping is 
+     * limited to 2GB, so large grids are written through several mappings of up to MAX_MAPPING bytes each.
+     */
+    private static void putColumns(FileChannel channel, long offset, HeightGrid grid) throws IOException {
+        int height = grid.getHeight();
+        long columnBytes = (long) height * Float.BYTES;
+        int columnsPerMapping = (int) Math.max(1, MAX_MAPPING / columnBytes);
+        // in-memory grids can be copied straight from their arrays
+        float[][] data = grid instanceof ArrayHeightGrid ? ((ArrayHeightGrid) grid).getData() : null;
+        float[] column = data == null ? new float[height] : null;
+
+        for(int start = 0; start < grid.getWidth(); start += columnsPerMapping){
+            int end = Math.min(grid.getWidth(), start + columnsPerMapping);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, offset + start * columnBytes, (end - start) * columnBytes);
+            FloatBuffer floats = buffer.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            for(int x = start; x < end; x++){
+                if(data != null){
+                    floats.put(data[x]);
+                } else {
+                    grid.readColumn(x, column);
+                    floats.put(column);
+                }
+            }
+            buffer.force();
+        }
+    }
+
+    /**
+     * Copies the columns of the file, starting at offset, into the grid. Like putColumns, this goes through several 
+     * mappings of up to MAX_MAPPING bytes each, so files larger than 2GB can be read.
+     */
+    private static void getColumns(FileChannel channel, long offset, ByteOrder order, HeightGrid grid, String path) throws IOException {
+        int height = grid.getHeight();
+        if(channel.size() - offset < dataLength(grid.getWidth(), height)){
+            throw new IOException("File " + path + " is too short for a " + grid.getWidth() + "x" + height + " height field");
+        }
+        long columnBytes = (long) height * Float.BYTES;
+        int columnsPerMapping = (int) Math.max(1, MAX_MAPPING / columnBytes);
+        // in-memory grids can be copied straight into their arrays
+        float[][] data = grid instanceof ArrayHeightGrid ? ((ArrayHeightGrid) grid).getData() : null;
+        float[] column = data == null ? new float[height] : null;
+
+        for(int start = 0; start < grid.getWidth(); start += columnsPerMapping){
+            int end = Math.min(grid.getWidth(), start + columnsPerMapping);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset + start * columnBytes, (end - start) * columnBytes);
+            FloatBuffer floats = buffer.order(order).asFloatBuffer();
+            for(int x = start; x < end; x++){
+                if(data != null){
+                    floats.get(data[x]);
+                } else {
+                    floats.get(column);
+                    grid.writeColumn(x, column);
+                }
+            }
+        }
+    }
+
+    /**
+     * Where to read a height field of the given dimensions into, once they are known from the file.
+     */
+    private interface GridProvider {
+        HeightGrid forSize(int width, int height);
+    }
+}
@@ -0,0 +1,36 @@
+package emulator.src;
+
+/**
+ * Storage for the aluminum heights of a PowderScreen, indexed (x, y) like the screen. Either plain arrays on the 
+ * heap (ArrayHeightGrid) or tiles of a memory-mapped file (MappedHeightGrid) for screens too large for the heap.
+ */
+interface HeightGrid {
+    /**
+     * @return The number of points along x.
+     */
+    int getWidth();
+
+    /**
+     * @return The number of points along y.
+     */
+    int getHeight();
+
+    float get(int x, int y);
+
+    void set(int x, int y, float value);
+
+    /**
+     * Sets every point to the given value.
+     */
+    void fill(float value);
+
+    /**
+     * Copies column x, i.e. the points (x, 0) ... (x, getHeight() - 1), into destination.
+     */
+    void readColumn(int x, float[] destination);
+
+    /**
+     * Overwrites column x with the first getHeight() values of source.
+     */
+    void writeColumn(int x, float[] source);
+}
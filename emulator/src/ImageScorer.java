@@ -0,0 +1,266 @@
+package emulator.src;
+
+import java.awt.Color;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Scores candidate drawings against a target image entirely in memory, i.e. without the PNG round trip through
+ * Emulator. Meant to be called in a loop by a vectorizer searching for good command lists.
+ *
+ * Candidates are compared in the same gray levels that writeImageToFile would produce (see
+ * EtchASketchCanvas.toneMap), against the target's luminance resampled onto the emulator grid. The score is
+ * computed over independent tiles in parallel. Canvases are leased from a CanvasPool, so the emulation grids are
+ * reset in place rather than reallocated for every candidate. Safe to call from several threads at once: a thread
+ * that finds no idle canvas in the pool gets a new one, so the size of the pool only decides how many canvases are
+ * kept around for reuse, not whether concurrent calls work.
+ */
+public class ImageScorer {
+    // the side length, in grid points, of each independently scored tile. Must be a multiple of SSIM_WINDOW.
+    private static final int TILE_SIZE = 128;
+    // SSIM is computed over non-overlapping SSIM_WINDOW x SSIM_WINDOW windows and averaged
+    private static final int SSIM_WINDOW = 8;
+    // stabilizing constants from the SSIM paper for a dynamic range of 1, i.e. (.01 L)^2 and (.03 L)^2
+    private static final double SSIM_C1 = 0.0001;
+    private static final double SSIM_C2 = 0.0009;
+    // How much more an error on the strongest edge of the target counts than an error on a flat region
+    private static final double EDGE_GAIN = 4;
+
+    // the image we are trying to draw
+    private final Picture target;
+    // the target resampled onto the most recently used grid dimensions
+    private TargetGrid targetGrid;
+    // canvases are reused between calls to score(...) so we don't allocate new grids for each candidate
+    private final CanvasPool pool;
+    // how closely to emulate candidates, see setQuality(...)
+    private volatile QualityLevel quality = QualityLevel.REFERENCE;
+
+    /**
+     * The result of comparing a drawing against the target.
+     */
+    public static class Score {
+        // mean squared error of gray levels, in [0, 1]. Lower is better.
+        public final double mse;
+        // mean structural similarity over SSIM_WINDOW sized windows, in [-1, 1]. Higher is better.
+        public final double ssim;
+        // mean squared error weighted towards the target's edges (Sobel magnitude), in [0, 1]. Lower is better.
+        public final double edgeWeightedMse;
+
+        Score(double mse, double ssim, double edgeWeightedMse){
+            this.mse = mse;
+            this.ssim = ssim;
+            this.edgeWeightedMse = edgeWeightedMse;
+        }
+
+        @Override
+        public String toString(){
+            return "Score(mse: " + mse + ", ssim: " + ssim + ", edgeWeightedMse: " + edgeWeightedMse + ")";
+        }
+    }
+
+    /**
+     * Uses a pool keeping up to Runtime.getRuntime().availableProcessors() idle canvases of each grid size. Every 
+     * canvas holds a full grid, i.e. 64MB for a 4000x4000 grid and several hundred megabytes for a fine stylus, so 
+     * pass a smaller (or shared) pool when memory is tight.
+     * @param target The image candidates should look like. It is stretched over the whole etch-a-sketch.
+     */
+    public ImageScorer(Picture target){
+        this(target, new CanvasPool(Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @param target The image candidates should look like. It is stretched over the whole etch-a-sketch.
+     * @param pool Where to lease canvases from. May be shared with other scorers.
+     */
+    public ImageScorer(Picture target, CanvasPool pool){
+        this.target = target;
+        this.pool = pool;
+    }
+
+    /**
+     * Emulate candidates at a lower quality level, e.g. QualityLevel.KERNEL for the early rounds of a search 
+     * where ranking candidates roughly is good enough. Defaults to QualityLevel.REFERENCE.
+     */
+    public void setQuality(QualityLevel quality){
+        this.quality = quality;
+    }
+
+    /**
+     * Emulates the candidate and scores the result.
+     * @param candidate The commands (and etch-a-sketch dimensions) to score.
+     * @return The score of the emulated drawing.
+     */
+    public Score score(EtchCommandFile candidate){
+        EtchASketchCanvas canvas = pool.lease(candidate);
+        try {
+            canvas.setQuality(quality);
+            canvas.execute(false);
+            return score(canvas.getHeights());
+        } finally {
+            pool.release(canvas);
+        }
+    }
+
+    /**
+     * Emulates the commands on an etch-a-sketch with the given dimensions and scores the result.
+     */
+    public Score score(double startX, double startY, double etchWidth, double etchHeight, double pointerRadius, List<EtchCommand> commands){
+        EtchCommandFile file = EtchASketchCanvas.emptyFile(etchWidth, etchHeight, pointerRadius, startX, startY);
+        file.commands = commands;
+        return score(file);
+    }
+
+    /**
+     * Scores an already emulated aluminum distribution.
+     * @param heights A height field, i.e. PowderScreen.getScreen()
+     * @return The score of the drawing.
+     */
+    public Score score(float[][] heights){
+        int width = heights.length;
+        int height = heights[0].length;
+        TargetGrid grid = getTargetGrid(width, height);
+
+        int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        // partial sums of each tile, added up in a fixed order afterwards so that scores are reproducible
+        double[][] partials = new double[tilesX * tilesY][];
+        IntStream.range(0, partials.length).parallel().forEach(tile ->
+            partials[tile] = scoreTile(heights, grid, (tile / tilesY) * TILE_SIZE, (tile % tilesY) * TILE_SIZE)
+        );
+
+        double squaredError = 0, ssimSum = 0, windows = 0, weightedError = 0, totalWeight = 0;
+        for(double[] partial : partials){
+            squaredError += partial[0];
+            ssimSum += partial[1];
+            windows += partial[2];
+            weightedError += partial[3];
+            totalWeight += partial[4];
+        }
+        double points = (double) width * height;
+        return new Score(squaredError / points, ssimSum / windows, weightedError / totalWeight);
+    }
+
+    /**
+     * Scores one tile of the grid.
+     * @return {sum of squared errors, sum of window SSIMs, number of windows, sum of weighted squared errors, sum of weights}
+     */
+    private double[] scoreTile(float[][] heights, TargetGrid grid, int startX, int startY){
+        int endX = Math.min(heights.length, startX + TILE_SIZE);
+        int endY = Math.min(heights[0].length, startY + TILE_SIZE);
+        double[] sums = new double[5];
+
+        for(int wx = startX; wx < endX; wx += SSIM_WINDOW){
+            for(int wy = startY; wy < endY; wy += SSIM_WINDOW){
+                double sumA = 0, sumB = 0, sumAA = 0, sumBB = 0, sumAB = 0;
+                int n = 0;
+                for(int x = wx; x < Math.min(endX, wx + SSIM_WINDOW); x++){
+                    float[] column = heights[x];
+                    float[] targetColumn = grid.gray[x];
+                    float[] weightColumn = grid.edgeWeights[x];
+                    for(int y = wy; y < Math.min(endY, wy + SSIM_WINDOW); y++){
+                        double a = EtchASketchCanvas.toneMap(column[y]);
+                        double b = targetColumn[y];
+                        double diff = a - b;
+                        sums[0] += diff * diff;
+                        sums[3] += weightColumn[y] * diff * diff;
+                        sums[4] += weightColumn[y];
+                        sumA += a;
+                        sumB += b;
+                        sumAA += a * a;
+                        sumBB += b * b;
+                        sumAB += a * b;
+                        n++;
+                    }
+                }
+                double meanA = sumA / n;
+                double meanB = sumB / n;
+                double varA = sumAA / n - meanA * meanA;
+                double varB = sumBB / n - meanB * meanB;
+                double covariance = sumAB / n - meanA * meanB;
+                sums[1] += ((2 * meanA * meanB + SSIM_C1) * (2 * covariance + SSIM_C2)) /
+                           ((meanA * meanA + meanB * meanB + SSIM_C1) * (varA + varB + SSIM_C2));
+                sums[2]++;
+            }
+        }
+        return sums;
+    }
+
+    /**
+     * Resamples the target onto a width x height grid (bilinearly, with y pointing up like the screen) and computes
+     * edge weights from it. Reuses the last result if the grid dimensions haven't changed.
+     */
+    private synchronized TargetGrid getTargetGrid(int width, int height){
+        if(targetGrid != null && targetGrid.gray.length == width && targetGrid.gray[0].length == height){
+            return targetGrid;
+        }
+        int imageWidth = target.width();
+        int imageHeight = target.height();
+        float[][] luminance = new float[imageWidth][imageHeight];
+        for(int i = 0; i < imageWidth; i++){
+            for(int j = 0; j < imageHeight; j++){
+                Color c = target.get(i, j);
+                luminance[i][j] = (0.299f * c.getRed() + 0.587f * c.getGreen() + 0.114f * c.getBlue()) / 255;
+            }
+        }
+
+        float[][] gray = new float[width][height];
+        IntStream.range(0, width).parallel().forEach(x -> {
+            double imageX = width > 1 ? x * (imageWidth - 1) / (double) (width - 1) : 0;
+            int i0 = (int) Math.floor(imageX);
+            int i1 = Math.min(imageWidth - 1, i0 + 1);
+            double fx = imageX - i0;
+            for(int y = 0; y < height; y++){
+                // flip the y axis, image rows go down
+                double imageY = height > 1 ? (height - 1 - y) * (imageHeight - 1) / (double) (height - 1) : 0;
+                int j0 = (int) Math.floor(imageY);
+                int j1 = Math.min(imageHeight - 1, j0 + 1);
+                double fy = imageY - j0;
+                gray[x][y] = (float) ((1 - fx) * ((1 - fy) * luminance[i0][j0] + fy * luminance[i0][j1]) +
+                                      fx * ((1 - fy) * luminance[i1][j0] + fy * luminance[i1][j1]));
+            }
+        });
+
+        // Sobel gradient magnitude, clamped at the borders
+        float[][] magnitude = new float[width][height];
+        IntStream.range(0, width).parallel().forEach(x -> {
+            int left = Math.max(0, x - 1);
+            int right = Math.min(width - 1, x + 1);
+            for(int y = 0; y < height; y++){
+                int down = Math.max(0, y - 1);
+                int up = Math.min(height - 1, y + 1);
+                float gx = (gray[right][down] + 2 * gray[right][y] + gray[right][up]) -
+                           (gray[left][down] + 2 * gray[left][y] + gray[left][up]);
+                float gy = (gray[left][up] + 2 * gray[x][up] + gray[right][up]) -
+                           (gray[left][down] + 2 * gray[x][down] + gray[right][down]);
+                magnitude[x][y] = (float) Math.sqrt(gx * gx + gy * gy);
+            }
+        });
+        float maxMagnitude = 0;
+        for(float[] column : magnitude){
+            for(float m : column){
+                maxMagnitude = Math.max(maxMagnitude, m);
+            }
+        }
+        // reuse the magnitude array for the weights
+        for(float[] column : magnitude){
+            for(int y = 0; y < column.length; y++){
+                column[y] = maxMagnitude > 0 ? (float) (1 + EDGE_GAIN * column[y] / maxMagnitude) : 1;
+            }
+        }
+
+        targetGrid = new TargetGrid(gray, magnitude);
+        return targetGrid;
+    }
+
+    /**
+     * The target's luminance and edge weights at every grid point, indexed like PowderScreen.getScreen().
+     */
+    private static class TargetGrid {
+        final float[][] gray;
+        final float[][] edgeWeights;
+        TargetGrid(float[][] gray, float[][] edgeWeights){
+            this.gray = gray;
+            this.edgeWeights = edgeWeights;
+        }
+    }
+}
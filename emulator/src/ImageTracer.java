@@ -0,0 +1,820 @@
+package emulator.src;
+
+import java.awt.Color;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Turns an image into a command file the emulator (or a real etch-a-sketch) can draw, entirely in Java.
+ *
+ * The image is converted to luminance, smoothed a little, and traced with marching squares at a few evenly spaced
+ * gray levels. Contour segments are only kept where the image has an edge (Sobel magnitude at least edgeThreshold
+ * of the strongest edge), so flat gradients and noise don't produce lines. Contours are chained within each tile,
+ * then the pieces that end on a tile border are stitched together: a point where a contour crosses the image grid
+ * is identified by the grid edge it lies on (and the gray level), which both tiles sharing that edge compute the
+ * same way. The contours are simplified (Ramer-Douglas-Peucker), ordered greedily by proximity, and connected with
+ * straight lines, since the pointer can't be lifted. The commands are written out as they are ordered.
+ *
+ * The luminance, smoothing and edge passes run over columns in parallel, tracing runs over tiles in parallel and
+ * simplification over contours in parallel. Stitching the border pieces, the greedy ordering and writing run on a
+ * single thread. How well this scales with more cores has not been measured.
+ *
+ * Like ImageScorer, the image is stretched over the whole etch-a-sketch.
+ */
+public class ImageTracer {
+    // the side length, in cells, of the tiles traced independently
+    private static final int TILE_SIZE = 256;
+
+    // the dimensions of the etch-a-sketch and the pointer, in cm
+    private final double etchWidth;
+    private final double etchHeight;
+    private final double pointerRadius;
+    // the number of gray levels to trace, evenly spaced in (0, 1)
+    private int levels = 4;
+    // contours are only kept where the edge strength is at least this fraction of the strongest edge
+    private double edgeThreshold = 0.1;
+    // how far (in cm) the simplified contours may stray from the traced ones
+    private double tolerance;
+    // contours shorter than this (in cm) are dropped
+    private double minContourLength;
+
+    /**
+     * @param etchWidth The width of the etch-a-sketch, in cm
+     * @param etchHeight The height of the etch-a-sketch, in cm
+     * @param pointerRadius The thickness of the drawing stylus, in cm. Sets the default tolerance (half the radius)
+     *                      and minimum contour length (four radii); nothing finer than the pointer can be drawn anyway.
+     */
+    public ImageTracer(double etchWidth, double etchHeight, double pointerRadius){
+        this.etchWidth = etchWidth;
+        this.etchHeight = etchHeight;
+        this.pointerRadius = pointerRadius;
+        tolerance = pointerRadius / 2;
+        minContourLength = 4 * pointerRadius;
+    }
+
+    /**
+     * Traces a PNG and writes the command file.
+     * @param args Five arguments required, two optional:
+     *      1. The image to trace (.png, .jpg, ...).
+     *      2. Where to write the .json command file.
+     *      3. The width of the etch-a-sketch, in cm
+     *      4. The height of the etch-a-sketch, in cm
+     *      5. The pointer radius, in cm
+     *      6. (Optional) The number of gray levels to trace, 4 by default.
+     *      7. (Optional) The edge threshold, 0.1 by default.
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 5){
+            System.out.println("Usage: ImageTracer image output.json etchWidth etchHeight pointerRadius [levels] [edgeThreshold]");
+            return;
+        }
+        ImageTracer tracer = new ImageTracer(Double.parseDouble(args[2]), Double.parseDouble(args[3]), Double.parseDouble(args[4]));
+        if(args.length > 5){
+            tracer.setLevels(Integer.parseInt(args[5]));
+        }
+        if(args.length > 6){
+            tracer.setEdgeThreshold(Double.parseDouble(args[6]));
+        }
+
+        long start = System.nanoTime();
+        Picture image = new Picture(args[0]);
+        System.out.println("Read " + image.width() + "x" + image.height() + " image in " + (System.nanoTime() - start) / 1000000 + "ms.");
+        start = System.nanoTime();
+        long commands;
+        try (Writer out = new BufferedWriter(new FileWriter(args[1]))) {
+            commands = tracer.trace(image, out);
+        }
+        System.out.println("Wrote " + commands + " commands in " + (System.nanoTime() - start) / 1000000 + "ms.");
+    }
+
+    public void setLevels(int levels){
+        this.levels = levels;
+    }
+
+    public void setEdgeThreshold(double edgeThreshold){
+        this.edgeThreshold = edgeThreshold;
+    }
+
+    /**
+     * @param tolerance How far (in cm) the simplified contours may stray from the traced ones.
+     */
+    public void setTolerance(double tolerance){
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * @param minContourLength Contours shorter than this (in cm) are dropped.
+     */
+    public void setMinContourLength(double minContourLength){
+        this.minContourLength = minContourLength;
+    }
+
+    /**
+     * Traces the image and writes the resulting command file.
+     * @param image The image to trace.
+     * @param out Where to write the .json command file. Closed when done.
+     * @return The number of commands written.
+     */
+    public long trace(Picture image, Writer out) throws IOException {
+        List<Contour> contours = traceContours(image);
+        List<Contour> simplified = contours.parallelStream()
+                                           .map(contour -> simplify(toEtchCoords(contour, image.width(), image.height())))
+                                           .filter(contour -> contour.length() >= minContourLength)
+                                           .collect(Collectors.toList());
+        return write(simplified, out);
+    }
+
+    /**
+     * Finds the contours of the image, in image coordinates (pixels, y pointing down).
+     */
+    private List<Contour> traceContours(Picture image){
+        int width = image.width();
+        int height = image.height();
+        if(width < 2 || height < 2){
+            return new ArrayList<>();
+        }
+        float[][] gray = new float[width][height];
+        float[][] buffer = new float[width][height];
+        IntStream.range(0, width).parallel().forEach(x -> {
+            for(int y = 0; y < height; y++){
+                Color c = image.get(x, y);
+                gray[x][y] = (0.299f * c.getRed() + 0.587f * c.getGreen() + 0.114f * c.getBlue()) / 255;
+            }
+        });
+        // take the edge off noise
+        smooth(gray, buffer);
+        // the edge strength, buffer is free again
+        float[][] magnitude = buffer;
+        sobel(gray, magnitude);
+        float maxMagnitude = (float) IntStream.range(0, width).parallel().mapToDouble(x -> {
+            float max = 0;
+            for(float m : magnitude[x]){
+                max = Math.max(max, m);
+            }
+            return max;
+        }).max().getAsDouble();
+        float minMagnitude = (float) (edgeThreshold * maxMagnitude);
+
+        // cells are the squares between four neighbouring pixels
+        int tilesX = (width - 1 + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesY = (height - 1 + TILE_SIZE - 1) / TILE_SIZE;
+        List<List<Contour>> tiles = IntStream.range(0, tilesX * tilesY).parallel()
+                                             .mapToObj(tile -> traceTile(gray, magnitude, minMagnitude, tile / tilesY, tile % tilesY))
+                                             .collect(Collectors.toList());
+
+        // stitch the pieces that end on a tile border, everything else is done
+        List<Contour> contours = new ArrayList<>();
+        List<Contour> borderPieces = new ArrayList<>();
+        for(List<Contour> tile : tiles){
+            for(Contour contour : tile){
+                if(!contour.closed && (isOnTileBorder(contour.startKey, height) || isOnTileBorder(contour.endKey, height))){
+                    borderPieces.add(contour);
+                } else {
+                    contours.add(contour);
+                }
+            }
+        }
+        contours.addAll(link(new ContourPieces(borderPieces)));
+        return contours;
+    }
+
+    /**
+     * Blurs with a [1 2 1] / 4 kernel in both directions, clamping at the borders.
+     * @param values The values to blur, replaced with the result.
+     * @param buffer Space for intermediate results, the same size as values.
+     */
+    private static void smooth(float[][] values, float[][] buffer){
+        int width = values.length;
+        int height = values[0].length;
+        IntStream.range(0, width).parallel().forEach(x -> {
+            float[] column = values[x];
+            float[] out = buffer[x];
+            for(int y = 0; y < height; y++){
+                out[y] = (column[Math.max(0, y - 1)] + 2 * column[y] + column[Math.min(height - 1, y + 1)]) / 4;
+            }
+        });
+        IntStream.range(0, width).parallel().forEach(x -> {
+            float[] left = buffer[Math.max(0, x - 1)];
+            float[] middle = buffer[x];
+            float[] right = buffer[Math.min(width - 1, x + 1)];
+            float[] out = values[x];
+            for(int y = 0; y < height; y++){
+                out[y] = (left[y] + 2 * middle[y] + right[y]) / 4;
+            }
+        });
+    }
+
+    /**
+     * Sobel gradient magnitude, clamped at the borders.
+     */
+    private static void sobel(float[][] gray, float[][] magnitude){
+        int width = gray.length;
+        int height = gray[0].length;
+        IntStream.range(0, width).parallel().forEach(x -> {
+            float[] left = gray[Math.max(0, x - 1)];
+            float[] middle = gray[x];
+            float[] right = gray[Math.min(width - 1, x + 1)];
+            for(int y = 0; y < height; y++){
+                int up = Math.max(0, y - 1);
+                int down = Math.min(height - 1, y + 1);
+                float gx = (right[up] + 2 * right[y] + right[down]) - (left[up] + 2 * left[y] + left[down]);
+                float gy = (left[down] + 2 * middle[down] + right[down]) - (left[up] + 2 * middle[up] + right[up]);
+                magnitude[x][y] = (float) Math.sqrt(gx * gx + gy * gy);
+            }
+        });
+    }
+
+    /**
+     * Runs marching squares over the cells of one tile and chains the segments into contours.
+     * @param tileX The tile's index along x; it covers cells [tileX * TILE_SIZE, (tileX + 1) * TILE_SIZE).
+     * @param tileY Likewise along y.
+     */
+    private List<Contour> traceTile(float[][] gray, float[][] magnitude, float minMagnitude, int tileX, int tileY){
+        int height = gray[0].length;
+        int startX = tileX * TILE_SIZE;
+        int startY = tileY * TILE_SIZE;
+        int endX = Math.min(gray.length - 1, startX + TILE_SIZE);
+        int endY = Math.min(height - 1, startY + TILE_SIZE);
+
+        Segments segments = new Segments();
+        long[] crossings = new long[4];
+        float[] crossingX = new float[4];
+        float[] crossingY = new float[4];
+        for(int x = startX; x < endX; x++){
+            for(int y = startY; y < endY; y++){
+                float edge = Math.max(Math.max(magnitude[x][y], magnitude[x + 1][y]), Math.max(magnitude[x][y + 1], magnitude[x + 1][y + 1]));
+                if(edge < minMagnitude){
+                    continue;
+                }
+                // corners counterclockwise in grid coordinates, starting at (x, y)
+                float v0 = gray[x][y], v1 = gray[x + 1][y], v2 = gray[x + 1][y + 1], v3 = gray[x][y + 1];
+                for(int level = 0; level < levels; level++){
+                    float threshold = (level + 1) / (float) (levels + 1);
+                    boolean in0 = v0 >= threshold, in1 = v1 >= threshold, in2 = v2 >= threshold, in3 = v3 >= threshold;
+                    // the crossed cell edges, in order around the cell: (x, y)-(x+1, y), then right, top, left
+                    // each crossing is interpolated from the grid point the edge starts at, so that the tile on the
+                    // other side of the edge finds exactly the same point
+                    int count = 0;
+                    if(in0 != in1){
+                        crossings[count] = edgeKey(x, y, false, level, height);
+                        crossingX[count] = x + (threshold - v0) / (v1 - v0);
+                        crossingY[count++] = y;
+                    }
+                    if(in1 != in2){
+                        crossings[count] = edgeKey(x + 1, y, true, level, height);
+                        crossingX[count] = x + 1;
+                        crossingY[count++] = y + (threshold - v1) / (v2 - v1);
+                    }
+                    if(in3 != in2){
+                        crossings[count] = edgeKey(x, y + 1, false, level, height);
+                        crossingX[count] = x + (threshold - v3) / (v2 - v3);
+                        crossingY[count++] = y + 1;
+                    }
+                    if(in0 != in3){
+                        crossings[count] = edgeKey(x, y, true, level, height);
+                        crossingX[count] = x;
+                        crossingY[count++] = y + (threshold - v0) / (v3 - v0);
+                    }
+                    if(count == 2){
+                        segments.add(crossings, crossingX, crossingY, 0, 1);
+                    } else if(count == 4){
+                        // a saddle: use the center to decide whether corner 1 is cut off from the rest (with corner 3),
+                        // or connected to the center (cutting off corners 0 and 2)
+                        boolean centerIn = (v0 + v1 + v2 + v3) / 4 >= threshold;
+                        if(centerIn == in1){
+                            segments.add(crossings, crossingX, crossingY, 0, 3);
+                            segments.add(crossings, crossingX, crossingY, 1, 2);
+                        } else {
+                            segments.add(crossings, crossingX, crossingY, 0, 1);
+                            segments.add(crossings, crossingX, crossingY, 2, 3);
+                        }
+                    }
+                }
+            }
+        }
+        return link(segments);
+    }
+
+    /**
+     * Identifies the point where a contour crosses a grid edge, globally (i.e. the same in every tile).
+     * @param x The grid point the edge starts at.
+     * @param y The grid point the edge starts at.
+     * @param vertical Whether the edge goes to (x, y+1) rather than (x+1, y).
+     */
+    private long edgeKey(int x, int y, boolean vertical, int level, int height){
+        long edge = ((long) x * height + y) * 2 + (vertical ? 1 : 0);
+        return edge * levels + level;
+    }
+
+    /**
+     * @return Whether the grid edge of the key lies between cells of different tiles, i.e. whether the contour
+     *         through it could continue in another tile.
+     */
+    private boolean isOnTileBorder(long key, int height){
+        long edge = key / levels;
+        long point = edge / 2;
+        if((edge & 1) == 1){
+            int x = (int) (point / height);
+            return x % TILE_SIZE == 0;
+        }
+        int y = (int) (point % height);
+        return y % TILE_SIZE == 0;
+    }
+
+    /**
+     * Chains pieces (segments or contours) that share an end into contours. Every key is expected to be the end
+     * of at most two pieces; a chain that comes back to where it started becomes a closed contour.
+     */
+    private static List<Contour> link(Pieces pieces){
+        int count = pieces.size();
+        EndpointIndex index = new EndpointIndex(2 * count);
+        List<Contour> contours = new ArrayList<>();
+        for(int i = 0; i < count; i++){
+            if(!pieces.isClosed(i)){
+                index.add(pieces.startKey(i), 2 * i);
+                index.add(pieces.endKey(i), 2 * i + 1);
+            }
+        }
+
+        boolean[] used = new boolean[count];
+        for(int i = 0; i < count; i++){
+            if(used[i]){
+                continue;
+            }
+            if(pieces.isClosed(i)){
+                Contour contour = new Contour();
+                pieces.appendTo(contour, i, false);
+                contour.closed = true;
+                contours.add(contour);
+                used[i] = true;
+                continue;
+            }
+            // ends are numbered 2 * piece + side, side 0 being the start. Walk back to the start of the chain.
+            int head = 2 * i;
+            boolean closed = false;
+            while(true){
+                int partner = index.partner(pieces, head);
+                if(partner < 0){
+                    break;
+                }
+                if(partner / 2 == i){
+                    closed = true;
+                    head = 2 * i;
+                    break;
+                }
+                // continue out of the partner's other end
+                head = partner ^ 1;
+            }
+
+            // and forward again, appending every piece entered at side (end & 1)
+            Contour contour = new Contour();
+            contour.startKey = pieces.key(head);
+            int end = head;
+            while(true){
+                int piece = end / 2;
+                used[piece] = true;
+                pieces.appendTo(contour, piece, (end & 1) == 1);
+                int exit = end ^ 1;
+                contour.endKey = pieces.key(exit);
+                int partner = index.partner(pieces, exit);
+                if(partner < 0 || used[partner / 2]){
+                    break;
+                }
+                end = partner;
+            }
+            contour.closed = closed;
+            contours.add(contour);
+        }
+        return contours;
+    }
+
+    /**
+     * Maps a contour from image coordinates onto the etch-a-sketch (flipping y, since image rows go down).
+     */
+    private Contour toEtchCoords(Contour contour, int imageWidth, int imageHeight){
+        double scaleX = etchWidth / (imageWidth - 1);
+        double scaleY = etchHeight / (imageHeight - 1);
+        Contour result = new Contour();
+        result.closed = contour.closed;
+        for(int i = 0; i < contour.pointCount(); i++){
+            result.add((float) (contour.x(i) * scaleX), (float) ((imageHeight - 1 - contour.y(i)) * scaleY));
+        }
+        return result;
+    }
+
+    /**
+     * Ramer-Douglas-Peucker with the tolerance. The ends (and so a closed contour's closing point) are kept.
+     */
+    private Contour simplify(Contour contour){
+        int n = contour.pointCount();
+        if(n <= 2){
+            return contour;
+        }
+        boolean[] keep = new boolean[n];
+        keep[0] = keep[n - 1] = true;
+        // ranges of points still to simplify, as (first, last) pairs
+        int[] stack = new int[64];
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+        stack[stackSize++] = n - 1;
+        while(stackSize > 0){
+            int last = stack[--stackSize];
+            int first = stack[--stackSize];
+            double ax = contour.x(first), ay = contour.y(first);
+            double dx = contour.x(last) - ax, dy = contour.y(last) - ay;
+            double length = Math.sqrt(dx * dx + dy * dy);
+            int farthest = -1;
+            double farthestDistance = tolerance;
+            for(int i = first + 1; i < last; i++){
+                double px = contour.x(i) - ax, py = contour.y(i) - ay;
+                // distance to the line, or to the point if both ends coincide (closed contours)
+                double distance = length > 0 ? Math.abs(px * dy - py * dx) / length : Math.sqrt(px * px + py * py);
+                if(distance > farthestDistance){
+                    farthest = i;
+                    farthestDistance = distance;
+                }
+            }
+            if(farthest >= 0){
+                keep[farthest] = true;
+                if(stackSize + 4 > stack.length){
+                    stack = Arrays.copyOf(stack, 2 * stack.length);
+                }
+                stack[stackSize++] = first;
+                stack[stackSize++] = farthest;
+                stack[stackSize++] = farthest;
+                stack[stackSize++] = last;
+            }
+        }
+
+        Contour result = new Contour();
+        result.closed = contour.closed;
+        for(int i = 0; i < n; i++){
+            if(keep[i]){
+                result.add(contour.x(i), contour.y(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Orders the contours greedily (always drawing the closest remaining one next, starting from the one closest
+     * to the lower left corner) and writes them out, connected by straight lines. Open contours can be drawn in
+     * either direction; closed ones start and end at their first point.
+     * @return The number of commands written.
+     */
+    private long write(List<Contour> contours, Writer out) throws IOException {
+        ContourIndex index = new ContourIndex(contours, etchWidth, etchHeight);
+        int entry = index.nearest(0, 0);
+        if(entry < 0){
+            // nothing to draw, stay in the corner
+            new EtchCommandFileWriter(out, 0, 0, etchWidth, etchHeight, pointerRadius).close();
+            return 0;
+        }
+        Contour first = contours.get(entry / 2);
+        int firstPoint = (entry & 1) == 1 ? first.pointCount() - 1 : 0;
+        float x = first.x(firstPoint);
+        float y = first.y(firstPoint);
+        try (EtchCommandFileWriter writer = new EtchCommandFileWriter(out, x, y, etchWidth, etchHeight, pointerRadius)) {
+            while(entry >= 0){
+                Contour contour = contours.get(entry / 2);
+                index.remove(entry / 2);
+                boolean reversed = (entry & 1) == 1;
+                int n = contour.pointCount();
+                for(int i = 0; i < n; i++){
+                    int point = reversed ? n - 1 - i : i;
+                    if(contour.x(point) != x || contour.y(point) != y){
+                        x = contour.x(point);
+                        y = contour.y(point);
+                        writer.lineTo(x, y);
+                    }
+                }
+                entry = index.nearest(x, y);
+            }
+            return writer.getCommandCount();
+        }
+    }
+
+    /**
+     * Things that can be chained into contours by link(...). Ends are numbered 2 * piece + side, side 0 being the start.
+     */
+    private interface Pieces {
+        int size();
+        long startKey(int piece);
+        long endKey(int piece);
+        boolean isClosed(int piece);
+        /**
+         * Appends the piece's points, skipping the first one (which the contour already ends with) unless the
+         * contour is empty.
+         */
+        void appendTo(Contour contour, int piece, boolean reversed);
+
+        default long key(int end){
+            return (end & 1) == 0 ? startKey(end / 2) : endKey(end / 2);
+        }
+    }
+
+    /**
+     * The segments found by marching squares in one tile, in image coordinates.
+     */
+    private static class Segments implements Pieces {
+        private long[] keys = new long[64];
+        // x0, y0, x1, y1 of every segment
+        private float[] points = new float[128];
+        private int size = 0;
+
+        /**
+         * Adds the segment between two of the crossings found in a cell.
+         * @param keys The keys of the crossings.
+         * @param xs Where the crossings are.
+         * @param ys Where the crossings are.
+         * @param start The crossing the segment starts at.
+         * @param end The crossing the segment ends at.
+         */
+        void add(long[] keys, float[] xs, float[] ys, int start, int end){
+            if(2 * size + 2 > this.keys.length){
+                this.keys = Arrays.copyOf(this.keys, 2 * this.keys.length);
+                points = Arrays.copyOf(points, 2 * points.length);
+            }
+            this.keys[2 * size] = keys[start];
+            this.keys[2 * size + 1] = keys[end];
+            points[4 * size] = xs[start];
+            points[4 * size + 1] = ys[start];
+            points[4 * size + 2] = xs[end];
+            points[4 * size + 3] = ys[end];
+            size++;
+        }
+
+        public int size(){
+            return size;
+        }
+
+        public long startKey(int piece){
+            return keys[2 * piece];
+        }
+
+        public long endKey(int piece){
+            return keys[2 * piece + 1];
+        }
+
+        public boolean isClosed(int piece){
+            return false;
+        }
+
+        public void appendTo(Contour contour, int piece, boolean reversed){
+            int first = reversed ? 4 * piece + 2 : 4 * piece;
+            int second = reversed ? 4 * piece : 4 * piece + 2;
+            if(contour.pointCount() == 0){
+                contour.add(points[first], points[first + 1]);
+            }
+            contour.add(points[second], points[second + 1]);
+        }
+    }
+
+    /**
+     * Contours from traceTile(...), to be stitched across tile borders.
+     */
+    private static class ContourPieces implements Pieces {
+        private final List<Contour> contours;
+
+        ContourPieces(List<Contour> contours){
+            this.contours = contours;
+        }
+
+        public int size(){
+            return contours.size();
+        }
+
+        public long startKey(int piece){
+            return contours.get(piece).startKey;
+        }
+
+        public long endKey(int piece){
+            return contours.get(piece).endKey;
+        }
+
+        public boolean isClosed(int piece){
+            return contours.get(piece).closed;
+        }
+
+        public void appendTo(Contour contour, int piece, boolean reversed){
+            Contour source = contours.get(piece);
+            int n = source.pointCount();
+            for(int i = contour.pointCount() == 0 ? 0 : 1; i < n; i++){
+                int point = reversed ? n - 1 - i : i;
+                contour.add(source.x(point), source.y(point));
+            }
+        }
+    }
+
+    /**
+     * A polyline, with the keys (see edgeKey(...)) of its ends while it is being traced.
+     */
+    private static class Contour {
+        long startKey, endKey;
+        // whether the last point is the first point, i.e. the contour goes all the way around
+        boolean closed;
+        // x0, y0, x1, y1, ...
+        private float[] points = new float[16];
+        private int size = 0;
+
+        void add(float x, float y){
+            if(size + 2 > points.length){
+                points = Arrays.copyOf(points, 2 * points.length);
+            }
+            points[size++] = x;
+            points[size++] = y;
+        }
+
+        int pointCount(){
+            return size / 2;
+        }
+
+        float x(int i){
+            return points[2 * i];
+        }
+
+        float y(int i){
+            return points[2 * i + 1];
+        }
+
+        double length(){
+            double length = 0;
+            for(int i = 1; i < pointCount(); i++){
+                length += Math.hypot(x(i) - x(i - 1), y(i) - y(i - 1));
+            }
+            return length;
+        }
+    }
+
+    /**
+     * Maps keys to the (at most two) piece ends with that key. Open addressing, since there can be millions of ends.
+     */
+    private static class EndpointIndex {
+        private final long[] keys;
+        private final int[] first;
+        private final int[] second;
+        private final boolean[] occupied;
+        private final int mask;
+
+        EndpointIndex(int capacity){
+            int size = Integer.highestOneBit(Math.max(2, 2 * capacity) - 1) << 1;
+            keys = new long[size];
+            first = new int[size];
+            second = new int[size];
+            occupied = new boolean[size];
+            mask = size - 1;
+        }
+
+        void add(long key, int end){
+            int slot = slot(key);
+            if(!occupied[slot]){
+                occupied[slot] = true;
+                keys[slot] = key;
+                first[slot] = end;
+                second[slot] = -1;
+            } else if(second[slot] < 0){
+                second[slot] = end;
+            }
+            // a third end with the same key can't happen for marching squares; ignore it if it does
+        }
+
+        /**
+         * @return The other end with the same key as the given end, or -1 if there is none.
+         */
+        int partner(Pieces pieces, int end){
+            int slot = slot(pieces.key(end));
+            if(!occupied[slot]){
+                return -1;
+            }
+            if(first[slot] == end){
+                return second[slot];
+            }
+            return second[slot] == end ? first[slot] : -1;
+        }
+
+        private int slot(long key){
+            int slot = (int) (mix(key) & mask);
+            while(occupied[slot] && keys[slot] != key){
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private static long mix(long key){
+            key ^= key >>> 33;
+            key *= 0xff51afd7ed558ccdL;
+            key ^= key >>> 33;
+            return key;
+        }
+    }
+
+    /**
+     * The ends of the contours not drawn yet, bucketed on a grid over the etch-a-sketch to find the closest one
+     * quickly. Ends are numbered like in Pieces; closed contours only have their start.
+     */
+    private static class ContourIndex {
+        private final List<Contour> contours;
+        private final boolean[] removed;
+        private final int bucketsX, bucketsY;
+        private final double bucketWidth, bucketHeight;
+        private final int[][] buckets;
+        private final int[] bucketSizes;
+
+        ContourIndex(List<Contour> contours, double etchWidth, double etchHeight){
+            this.contours = contours;
+            removed = new boolean[contours.size()];
+            // about one end per bucket
+            int perSide = (int) Math.max(1, Math.min(2048, Math.sqrt(2 * contours.size())));
+            bucketsX = perSide;
+            bucketsY = perSide;
+            bucketWidth = etchWidth / bucketsX;
+            bucketHeight = etchHeight / bucketsY;
+            buckets = new int[bucketsX * bucketsY][];
+            bucketSizes = new int[bucketsX * bucketsY];
+            for(int i = 0; i < contours.size(); i++){
+                Contour contour = contours.get(i);
+                add(2 * i, contour.x(0), contour.y(0));
+                if(!contour.closed){
+                    int last = contour.pointCount() - 1;
+                    add(2 * i + 1, contour.x(last), contour.y(last));
+                }
+            }
+        }
+
+        private void add(int end, double x, double y){
+            int bucket = bucketX(x) * bucketsY + bucketY(y);
+            if(buckets[bucket] == null){
+                buckets[bucket] = new int[2];
+            } else if(bucketSizes[bucket] == buckets[bucket].length){
+                buckets[bucket] = Arrays.copyOf(buckets[bucket], 2 * bucketSizes[bucket]);
+            }
+            buckets[bucket][bucketSizes[bucket]++] = end;
+        }
+
+        void remove(int contour){
+            removed[contour] = true;
+        }
+
+        /**
+         * @return The end closest to (x, y) of any contour not removed yet, or -1 if all of them are.
+         */
+        int nearest(double x, double y){
+            int centerX = bucketX(x);
+            int centerY = bucketY(y);
+            int best = -1;
+            double bestDistance = Double.MAX_VALUE;
+            int maxRing = Math.max(bucketsX, bucketsY);
+            for(int ring = 0; ring <= maxRing; ring++){
+                for(int bx = centerX - ring; bx <= centerX + ring; bx++){
+                    if(bx < 0 || bx >= bucketsX){
+                        continue;
+                    }
+                    // only the outline of the ring, the inside was searched before
+                    int step = (bx == centerX - ring || bx == centerX + ring) ? 1 : 2 * ring;
+                    for(int by = centerY - ring; by <= centerY + ring; by += Math.max(1, step)){
+                        if(by < 0 || by >= bucketsY){
+                            continue;
+                        }
+                        int bucket = bx * bucketsY + by;
+                        int[] ends = buckets[bucket];
+                        for(int i = 0; i < bucketSizes[bucket]; i++){
+                            int end = ends[i];
+                            if(removed[end / 2]){
+                                // forget it for good
+                                ends[i--] = ends[--bucketSizes[bucket]];
+                                continue;
+                            }
+                            Contour contour = contours.get(end / 2);
+                            int point = (end & 1) == 0 ? 0 : contour.pointCount() - 1;
+                            double distance = Math.hypot(contour.x(point) - x, contour.y(point) - y);
+                            if(distance < bestDistance || (distance == bestDistance && end < best)){
+                                best = end;
+                                bestDistance = distance;
+                            }
+                        }
+                    }
+                }
+                // everything in later rings is at least this far away
+                if(best >= 0 && bestDistance <= ring * Math.min(bucketWidth, bucketHeight)){
+                    break;
+                }
+            }
+            return best;
+        }
+
+        private int bucketX(double x){
+            return Math.max(0, Math.min(bucketsX - 1, (int) (x / bucketWidth)));
+        }
+
+        private int bucketY(double y){
+            return Math.max(0, Math.min(bucketsY - 1, (int) (y / bucketHeight)));
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,105 @@
+package emulator.src;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A HeightGrid stored in a memory-mapped file, so the screen size is limited by disk space rather than the heap.
+ *
+ * The file is split into TILE_SIZE x TILE_SIZE tiles, each stored contiguously (tile by tile, column by column
+ * within a tile). The pointer only ever works on a small neighbourhood, which then lies in a handful of tiles,
+ * so the OS only has to keep the pages of the tiles around the pointer in memory and can page the rest out.
+ * Tiles are mapped in segments of SEGMENT_TILES tiles, since a single mapping is limited to 2GB.
+ *
+ * The mapping stays valid until the grid is garbage collected. The file is left in place afterwards; its contents
+ * are the raw tiled heights (little-endian float32), not a format meant for other tools (see HeightFieldIO for that).
+ */
+class MappedHeightGrid implements HeightGrid {
+    // tiles are 2^TILE_BITS points on a side, i.e. 128 x 128 floats = 64KB
+    private static final int TILE_BITS = 7;
+    private static final int TILE_SIZE = 1 << TILE_BITS;
+    private static final int TILE_MASK = TILE_SIZE - 1;
+    private static final int TILE_AREA_BITS = 2 * TILE_BITS;
+    // each mapping holds 2^SEGMENT_BITS tiles, i.e. 1GB
+    private static final int SEGMENT_BITS = 14;
+    private static final int SEGMENT_TILES = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_MASK = SEGMENT_TILES - 1;
+
+    private final int width;
+    private final int height;
+    // the number of tiles along y, to find the index of a tile
+    private final int tilesY;
+    private final FloatBuffer[] segments;
+
+    /**
+     * Maps (creating or growing it if necessary) the given file. The contents are whatever was in the file, so
+     * use fill(...) before use unless you are reopening a grid on purpose.
+     * @param file The backing file.
+     * @param width The number of points along x.
+     * @param height The number of points along y.
+     */
+    MappedHeightGrid(File file, int width, int height) throws IOException {
+        this.width = width;
+        this.height = height;
+        int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        long tiles = (long) tilesX * tilesY;
+        long tileBytes = (long) TILE_SIZE * TILE_SIZE * Float.BYTES;
+
+        segments = new FloatBuffer[(int) ((tiles + SEGMENT_TILES - 1) / SEGMENT_TILES)];
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            for(int i = 0; i < segments.length; i++){
+                long segmentTiles = Math.min(SEGMENT_TILES, tiles - (long) i * SEGMENT_TILES);
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * SEGMENT_TILES * tileBytes, segmentTiles * tileBytes)
+                                     .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            }
+        }
+    }
+
+    public int getWidth(){
+        return width;
+    }
+
+    public int getHeight(){
+        return height;
+    }
+
+    public float get(int x, int y){
+        int tile = (x >> TILE_BITS) * tilesY + (y >> TILE_BITS);
+        return segments[tile >>> SEGMENT_BITS].get(indexInSegment(tile, x, y));
+    }
+
+    public void set(int x, int y, float value){
+        int tile = (x >> TILE_BITS) * tilesY + (y >> TILE_BITS);
+        segments[tile >>> SEGMENT_BITS].put(indexInSegment(tile, x, y), value);
+    }
+
+    public void fill(float value){
+        // padding at the edges of the last tiles gets filled too, which doesn't hurt
+        for(FloatBuffer segment : segments){
+            for(int i = 0; i < segment.capacity(); i++){
+                segment.put(i, value);
+            }
+        }
+    }
+
+    public void readColumn(int x, float[] destination){
+        for(int y = 0; y < height; y++){
+            destination[y] = get(x, y);
+        }
+    }
+
+    public void writeColumn(int x, float[] source){
+        for(int y = 0; y < height; y++){
+            set(x, y, source[y]);
+        }
+    }
+
+    private static int indexInSegment(int tile, int x, int y){
+        return ((tile & SEGMENT_MASK) << TILE_AREA_BITS) | ((x & TILE_MASK) << TILE_BITS) | (y & TILE_MASK);
+    }
+}
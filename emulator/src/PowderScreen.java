@@ -1,5 +1,6 @@
 package emulator.src;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -10,11 +11,18 @@ import java.util.List;
  * @author Alan Koval
  */
 class PowderScreen {
-    // An 2d array representing the height of aluminum powder at selected (evenly distributed) points on the glass
-    private float[][] screen;
-    // Extraneous data storage for use in moveStep function. Re-initializing every step causes a serious performance hit.
-    PositiondValue[][] screenData;
-    boolean[][] screenData2;
+    // The height of aluminum powder at selected (evenly distributed) points on the glass, either in memory or in a file
+    private final HeightGrid screen;
+    // Extraneous data storage for use in moveStep function, covering the neighbourhood of the pointer. 
+    // Re-initializing every step causes a serious performance hit.
+    private Scratch scratch;
+    // how closely to follow the aluminum, see QualityLevel
+    private QualityLevel quality = QualityLevel.REFERENCE;
+    // how aluminum landing at a pixel is spread over it and its neighbours, for QualityLevel.depositKernel.
+    // depositKernel[1][1] is the pixel itself.
+    private float[][] depositKernel;
+    // the changes made by recent commands, so they can be undone. Null unless enabled with setHistoryLimit(...)
+    private DeltaLog history;
     // the location of the thing that scraped the aluminum off the glass (I call it the pointer).
     // Note things that are doubles are in "real coordinates", i.e. what you would specify when drawing a path on the etch-a-sketch.
     // Things that are integers are integers in screen (above), i.e. approximation coordinates.
@@ -46,44 +54,171 @@ class PowderScreen {
      * @param pointerRadius The thickness of the drawing stylus, in cm
      */
     PowderScreen(float coatingThickness, Vector2d screenExtent, double pointsPerUnit, Vector2d initPointerLocation, float pointerRadius){
+        this(newArrayGrid(screenExtent, pointsPerUnit), coatingThickness, screenExtent, initPointerLocation, pointerRadius);
+    }
+
+    /**
+     * Like the other constructor, but with the given storage for the heights, e.g. a MappedHeightGrid for screens 
+     * that don't fit on the heap. The grid's dimensions determine the approximation density.
+     * @param grid Where to store the heights. Overwritten with a fresh coating.
+     */
+    PowderScreen(HeightGrid grid, float coatingThickness, Vector2d screenExtent, Vector2d initPointerLocation, float pointerRadius){
+        screen = grid;
+        reset(coatingThickness, screenExtent, initPointerLocation, pointerRadius);
+    }
+
+    private static HeightGrid newArrayGrid(Vector2d screenExtent, double pointsPerUnit){
+        Vector2i gridSize = getGridSize(screenExtent, pointsPerUnit);
+        return new ArrayHeightGrid(gridSize.x, gridSize.y);
+    }
+
+    /**
+     * Shakes the etch-a-sketch, i.e. restores a uniform coating and moves the pointer, without reallocating any 
+     * of the (very large) grids. The grid dimensions stay the same, so the new screenExtent must have the same 
+     * getGridSize(...) as the old one for the given density.
+     * @param coatingThickness The desired thickness of the aluminum coating.
+     * @param screenExtent The width/height of the etch-a-sketch, in cm
+     * @param initPointerLocation The initial location of the pointer, in cm
+     * @param pointerRadius The thickness of the drawing stylus, in cm
+     */
+    void reset(float coatingThickness, Vector2d screenExtent, Vector2d initPointerLocation, float pointerRadius){
         initialCoatingThickness = coatingThickness;
-        this.screenExtent = screenExtent;
+        this.screenExtent = new Vector2d(screenExtent);
         this.pointerRadius = pointerRadius;
 
-        int approxWidth = (int) Math.ceil(screenExtent.x * pointsPerUnit);
-        int approxHeight = (int) Math.ceil(screenExtent.y * pointsPerUnit);
-
         // init blank screen 
-        screen = new float[approxWidth][approxHeight];
-        for(int y = 0; y < approxHeight; y++){
-            for(int x = 0; x < approxWidth; x++){
-                screen[x][y] = coatingThickness;
-            }
-        }
-
-        screenData = new PositiondValue[screen.length][screen[0].length];
-        screenData2 = new boolean[screen.length][screen[0].length];
+        screen.fill(coatingThickness);
+        // the reach of a microstep depends on the pointer radius and pixel width
+        scratch = newScratch();
+        depositKernel = newDepositKernel();
 
         pointerLocation = new Vector2d(initPointerLocation);
 
         // start with no aluminum at pointer location 
         changeAluminumDistributionInDisk(pointerLocation, pointerRadius, (x, y) -> 0);
+        if(history != null){
+            history.clear();
+        }
+    }
+
+    /**
+     * @param screenExtent The width/height of the etch-a-sketch, in cm
+     * @param pointsPerUnit The approximation density, in approximation points / cm
+     * @return The number of approximation points along x and y, i.e. the dimensions of getScreen().
+     */
+    static Vector2i getGridSize(Vector2d screenExtent, double pointsPerUnit){
+        return new Vector2i((int) Math.ceil(screenExtent.x * pointsPerUnit), (int) Math.ceil(screenExtent.y * pointsPerUnit));
     }
 
     Vector2d getPointerLocation(){
         return pointerLocation;
     }
 
+    /**
+     * @return The heights, indexed [x][y]. For in-memory screens this is the live array; otherwise a copy.
+     */
     float[][] getScreen(){
+        if(screen instanceof ArrayHeightGrid){
+            return ((ArrayHeightGrid) screen).getData();
+        }
+        float[][] copy = new float[screen.getWidth()][screen.getHeight()];
+        for(int x = 0; x < copy.length; x++){
+            screen.readColumn(x, copy[x]);
+        }
+        return copy;
+    }
+
+    HeightGrid getGrid(){
         return screen;
     }
 
+    QualityLevel getQuality(){
+        return quality;
+    }
+
+    /**
+     * Changes how closely to follow the aluminum for all later moves. The heights already on the screen stay as they are.
+     */
+    void setQuality(QualityLevel quality){
+        this.quality = quality;
+        // how far a microstep reaches depends on how far drag propagates
+        scratch = newScratch();
+    }
+
+    /**
+     * Replaces the current aluminum distribution, e.g. with a height field saved by an earlier run.
+     * @param heights The new heights, indexed [x][y]. Must have the same dimensions as getScreen().
+     */
+    void setScreen(float[][] heights){
+        if(heights.length != screen.getWidth() || heights[0].length != screen.getHeight()){
+            throw new IllegalArgumentException("Expected a " + screen.getWidth() + "x" + screen.getHeight() + 
+                                               " height field, got " + heights.length + "x" + heights[0].length);
+        }
+        for(int x = 0; x < heights.length; x++){
+            screen.writeColumn(x, heights[x]);
+        }
+        // there is no going back past this
+        if(history != null){
+            history.clear();
+        }
+    }
+
+    /**
+     * Like setScreen(float[][]), straight from a height field file (see HeightFieldIO). The file is copied into the 
+     * grid column by column, so screens stored in a file never need the whole height field on the heap.
+     */
+    void readScreen(String path) throws IOException {
+        HeightFieldIO.read(path, screen);
+        if(history != null){
+            history.clear();
+        }
+    }
+
+    /**
+     * Start (or stop) recording what every moveTo(newPosition) changes, so that it can be undone.
+     * @param commands How many of the most recent moves to keep, or 0 to stop recording. Changing the limit 
+     *                 forgets the moves recorded so far.
+     */
+    void setHistoryLimit(int commands){
+        history = commands > 0 ? new DeltaLog(screen, commands) : null;
+    }
+
+    /**
+     * @return The recorded history, or null if it isn't being recorded.
+     */
+    DeltaLog getHistory(){
+        return history;
+    }
+
+    /**
+     * Undoes the most recent moveTo(newPosition)s, restoring the heights and pointer from before them.
+     * @param moves How many moves to undo, at most getHistory().getUndoableCount().
+     */
+    void undo(int moves){
+        for(int i = 0; i < moves; i++){
+            pointerLocation = history.undo();
+        }
+    }
+
+    /**
+     * Applies undone moves again, as long as no other move happened since.
+     * @param moves How many moves to redo, at most getHistory().getRedoableCount().
+     */
+    void redo(int moves){
+        for(int i = 0; i < moves; i++){
+            pointerLocation = history.redo();
+        }
+    }
+
     /**
      * Moves the pointer to a new position in a straight line, calculating the effect the move has on the underlying 
      * aluminum distribution.
      * @param newPosition Where to move the pointer.
      */
     void moveTo(Vector2d newPosition){
+        if(history != null){
+            history.begin(pointerLocation);
+        }
         double stepSize = getApproxPixelWidth();
         // we separate the move into microsteps of length stepSize
         while(pointerLocation.distance(newPosition) > EPSILON){
@@ -95,6 +230,43 @@ class PowderScreen {
                 moveStep(direction.multLocal(stepSize / direction.length()));
             }
         }
+        if(history != null){
+            history.end(pointerLocation);
+        }
+    }
+
+    /**
+     * @return Scratch space for moveStep, large enough to hold everything within getPropagationReach() of the pointer.
+     */
+    private Scratch newScratch(){
+        int halfSize = (int) Math.ceil(getPropagationReach() / getApproxPixelWidth()) + 2;
+        return new Scratch(halfSize);
+    }
+
+    /**
+     * A bound on how far from the pointer a single microstep can read or write the screen, in real coordinates. 
+     * Drag propagates layer by layer, each layer reaching getApproxPixelWidth()*1.5 further than the last, and 
+     * stops once the displacement (halved by DRAG_ATTENUATION every layer) drops below 0.2 pixel widths, or 
+     * after quality.maxPropagationDepth layers. 
+     */
+    double getPropagationReach(){
+        double pixelWidth = getApproxPixelWidth();
+        // a layer touches pixels up to this far from its own pixels (neighbour disk plus rounding to pixels)
+        double layerReach = 2.5 * pixelWidth;
+        // pixels under the pointer, plus rounding
+        double reach = pointerRadius + pixelWidth;
+        // the displacement of the first layer, see moveStep
+        double displacement = 1.5 * pixelWidth;
+        int depth = 0;
+        while(depth < quality.maxPropagationDepth && displacement * DRAG_ATTENUATION >= pixelWidth * .2){
+            reach += layerReach;
+            displacement *= DRAG_ATTENUATION;
+            depth++;
+        }
+        // the last layer looks at its neighbours and moves its aluminum up to a (first layer) displacement away
+        reach += Math.max(layerReach, 1.5 * pixelWidth + 2 * pixelWidth);
+        // and one more pixel to be safe from rounding
+        return reach + pixelWidth;
     }
 
     /**
@@ -103,13 +275,20 @@ class PowderScreen {
      * @param offset A vector of length getApproxPixelWidth() in any direction.
      */
     private void moveStep(Vector2d offset){
-        // expected screenData and screenData2 to be empty 
-        Vector2i minScreenDataChanged = new Vector2i(Integer.MAX_VALUE, Integer.MAX_VALUE);
-        Vector2i maxScreenDataChanged = new Vector2i(Integer.MIN_VALUE, Integer.MIN_VALUE);
-
         // actually move the pointer
         Vector2d oldPointerLocation = new Vector2d(pointerLocation);
         pointerLocation.addLocal(offset);
+
+        // screenData and screenData2 only cover the neighbourhood of the pointer. (x, y) on the screen is 
+        // (x - originX, y - originY) in screenData/screenData2. Expected to be empty.
+        Vector2i origin = lowerLeftApproxIndex(pointerLocation);
+        int originX = origin.x - scratch.halfSize;
+        int originY = origin.y - scratch.halfSize;
+        PositiondValue[][] screenData = scratch.screenData;
+        boolean[][] screenData2 = scratch.screenData2;
+        Vector2i minScreenDataChanged = new Vector2i(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        Vector2i maxScreenDataChanged = new Vector2i(Integer.MIN_VALUE, Integer.MIN_VALUE);
+
         // get the pixels (i.e. indices in screen) that now lie under the pointer. These are 
         // displaced by the pointer and will be forced to move to some new location
 
@@ -122,31 +301,37 @@ class PowderScreen {
         for(PositionValue pv : displacedAmounts){
             Vector2i pixelPos = pv.position;
             // the "value" (amount of aluminum) we wish to transfer away from this pixel
-            float value = screen[pixelPos.x][pixelPos.y] * pv.value;
+            float value = screen.get(pixelPos.x, pixelPos.y) * pv.value;
             // outwardVec is the direction specified by the angle this pixel makes with the center of the pointer
             Vector2d outwardVec = toScreenCoords(pixelPos).subtractLocal(pointerLocation).normalizeLocal();
             // we take a weighted average of outwardVec and the direction of motion of the pointer (offset)
             Vector2d displacement = offset.normalize().multLocal(POINTER_FRICTION).addLocal(outwardVec.multLocal(1 - POINTER_FRICTION))
                                     .normalizeLocal().multLocal(offset.length() * 1.5);
             // screenData[x][y] tells the current movement (i.e. displacement and amount of aluminum involved) for pixel (x,y)
-            screenData[pixelPos.x][pixelPos.y] = new PositiondValue(displacement, value);
+            screenData[pixelPos.x - originX][pixelPos.y - originY] = new PositiondValue(displacement, value);
             // screenData2[x][y] is true if pixel (x,y) has been used in a layer already
-            screenData2[pixelPos.x][pixelPos.y] = true;
+            screenData2[pixelPos.x - originX][pixelPos.y - originY] = true;
             // rather than re-initialize screenData and screenData2 every iteration (that takes a very long time),
             // we keep track of where we've changed values in screenData/screenData2 so that we can clear the arrays efficiently.
             updateMinMaxPointCounter(minScreenDataChanged, maxScreenDataChanged, pixelPos);
             displacementLayer.add(pixelPos);
         }
 
+        // how many layers we are past the pixels under the pointer. The last layer allowed by the quality level 
+        // moves, but doesn't drag anything along.
+        int depth = 0;
         while(displacementLayer.size() > 0){
             List<Vector2i> newDisplacementLayer = new ArrayList<>();
+            boolean propagate = depth < quality.maxPropagationDepth;
             for(Vector2i displacementPos : displacementLayer){
-                PositiondValue amountDisplaced = screenData[displacementPos.x][displacementPos.y];
+                PositiondValue amountDisplaced = screenData[displacementPos.x - originX][displacementPos.y - originY];
                 // we will calculate the effect the movement occurring at displacementPos has on its neighbors
-                List<PositionValue> neighbors = getNonZeroApproxPixelsInDisk(toScreenCoords(displacementPos), getApproxPixelWidth()*1.5, null);
+                List<PositionValue> neighbors = propagate ? 
+                    getNonZeroApproxPixelsInDisk(toScreenCoords(displacementPos), getApproxPixelWidth()*1.5, null) : 
+                    new ArrayList<>();
                 for(PositionValue pv : neighbors){
                     // check if this neighbor has already been a part of a layer
-                    if(!screenData2[pv.position.x][pv.position.y]){
+                    if(!screenData2[pv.position.x - originX][pv.position.y - originY]){
                         // "neighbor offset", the movement based on the angle this neighbor makes with the pixel in question
                         Vector2d nOffset = toScreenCoords(pv.position.subtract(displacementPos));
                         // as before, we take a weighted average of the direction that the pixel is taking and 
@@ -161,18 +346,18 @@ class PowderScreen {
                         if(valueTransferred < initialCoatingThickness * MIN_DRAG_TRANSFER || dragDir.length() < getApproxPixelWidth() * .2){
                             continue;
                         }
-                        valueTransferred = Math.min(screen[pv.position.x][pv.position.y], valueTransferred);
+                        valueTransferred = Math.min(screen.get(pv.position.x, pv.position.y), valueTransferred);
                         updateMinMaxPointCounter(minScreenDataChanged, maxScreenDataChanged, pv.position);
-                        if(screenData[pv.position.x][pv.position.y] == null){
+                        if(screenData[pv.position.x - originX][pv.position.y - originY] == null){
                             // this pixel has not been encountered before
-                            screenData[pv.position.x][pv.position.y] = new PositiondValue(dragDir, valueTransferred);
+                            screenData[pv.position.x - originX][pv.position.y - originY] = new PositiondValue(dragDir, valueTransferred);
                             newDisplacementLayer.add(pv.position);
                         } else {
                             // we've already encountered this pixel as a neighbor before
-                            valueTransferred = Math.min(screen[pv.position.x][pv.position.y], valueTransferred + screenData[pv.position.x][pv.position.y].value);
-                            screenData[pv.position.x][pv.position.y].value = valueTransferred;
+                            valueTransferred = Math.min(screen.get(pv.position.x, pv.position.y), valueTransferred + screenData[pv.position.x - originX][pv.position.y - originY].value);
+                            screenData[pv.position.x - originX][pv.position.y - originY].value = valueTransferred;
                             // close enough to an average
-                            screenData[pv.position.x][pv.position.y].position.addLocal(dragDir).multLocal(.5f);
+                            screenData[pv.position.x - originX][pv.position.y - originY].position.addLocal(dragDir).multLocal(.5f);
                         }
                     }
                 }
@@ -180,32 +365,108 @@ class PowderScreen {
                 // actually compute the displacement
                 Vector2d destination = toScreenCoords(displacementPos).addLocal(amountDisplaced.position);
                 float amountTransferred = amountDisplaced.value;
+                if(quality.depositKernel){
+                    depositWithKernel(displacementPos, destination, amountTransferred);
+                    continue;
+                }
                 List<PositionValue> dstPxs = getNonZeroApproxPixelsInDisk(destination, getApproxPixelWidth(), null);
                 float totalValue = 0;
                 for(PositionValue dstPV : dstPxs){
                     totalValue += dstPV.value;
                 }
-                screen[displacementPos.x][displacementPos.y] -= amountTransferred;
+                setHeight(displacementPos.x, displacementPos.y, screen.get(displacementPos.x, displacementPos.y) - amountTransferred);
                 for(PositionValue dstPV :dstPxs){
-                    screen[dstPV.position.x][dstPV.position.y] += amountTransferred * dstPV.value / totalValue;
+                    setHeight(dstPV.position.x, dstPV.position.y, 
+                                screen.get(dstPV.position.x, dstPV.position.y) + amountTransferred * dstPV.value / totalValue);
                 }
             }
 
             for(Vector2i newLayerPt : newDisplacementLayer){
-                screenData2[newLayerPt.x][newLayerPt.y] = true;
+                screenData2[newLayerPt.x - originX][newLayerPt.y - originY] = true;
             }
             displacementLayer = newDisplacementLayer;
+            depth++;
         }
 
         // clear screenData / screenData2 
         for(int x = minScreenDataChanged.x; x <= maxScreenDataChanged.x; x++){
             for(int y = minScreenDataChanged.y; y <= maxScreenDataChanged.y; y++){
-                screenData[x][y] = null;
-                screenData2[x][y] = false;
+                screenData[x - originX][y - originY] = null;
+                screenData2[x - originX][y - originY] = false;
+            }
+        }
+    }
+
+    /**
+     * The cheap version of spreading aluminum over the pixels in a disk around its destination (see moveStep): 
+     * spreads it with depositKernel around the pixel nearest to the destination. Like the disk version, only 
+     * pixels that still have aluminum receive any, so the pointer's trail stays clean.
+     * @param source The pixel the aluminum comes from.
+     * @param destination Where the aluminum lands, in real coordinates.
+     * @param amount How much aluminum moves.
+     */
+    private void depositWithKernel(Vector2i source, Vector2d destination, float amount){
+        Vector2i center = nearestApproxIndex(destination);
+        int maxX = screen.getWidth() - 1;
+        int maxY = screen.getHeight() - 1;
+        // decide where it goes before taking it away, same as the disk version
+        boolean[] receives = new boolean[9];
+        float totalValue = 0;
+        for(int i = 0; i < 3; i++){
+            for(int j = 0; j < 3; j++){
+                int x = center.x + i - 1;
+                int y = center.y + j - 1;
+                if(x >= 0 && x <= maxX && y >= 0 && y <= maxY && screen.get(x, y) > 0){
+                    receives[3 * i + j] = true;
+                    totalValue += depositKernel[i][j];
+                }
+            }
+        }
+        setHeight(source.x, source.y, screen.get(source.x, source.y) - amount);
+        for(int i = 0; i < 3; i++){
+            for(int j = 0; j < 3; j++){
+                if(receives[3 * i + j]){
+                    int x = center.x + i - 1;
+                    int y = center.y + j - 1;
+                    setHeight(x, y, screen.get(x, y) + amount * depositKernel[i][j] / totalValue);
+                }
             }
         }
     }
 
+    /**
+     * @return The proportions getNonZeroApproxPixelsInDisk(...) gives to the pixels around a disk of radius 
+     *         getApproxPixelWidth() centered exactly on a pixel, indexed [x + 1][y + 1] by offset from that pixel.
+     */
+    private float[][] newDepositKernel(){
+        double approxPixWidth = getApproxPixelWidth();
+        double pixelDiagonal = approxPixWidth * Math.sqrt(2);
+        float[][] kernel = new float[3][3];
+        for(int i = 0; i < 3; i++){
+            for(int j = 0; j < 3; j++){
+                double centerDist = Math.hypot(i - 1, j - 1) * approxPixWidth;
+                float prop = 1;
+                if(centerDist > approxPixWidth - pixelDiagonal){
+                    prop = 0.5f + (float) ((approxPixWidth - centerDist) / (1.2 * approxPixWidth));
+                    prop = Math.max(0, prop);
+                    prop = Math.min(1, prop);
+                }
+                kernel[i][j] = prop;
+            }
+        }
+        return kernel;
+    }
+
+    /**
+     * Every change moveStep makes to the heights goes through here, so the history can record it.
+     */
+    private void setHeight(int x, int y, float value){
+        if(history != null && history.isRecording()){
+            history.touch(x, y, screen.get(x, y));
+        }
+        screen.set(x, y, value);
+    }
+
     private void updateMinMaxPointCounter(Vector2i minCounter, Vector2i maxCounter, Vector2i sample){
         minCounter.x = Math.min(minCounter.x, sample.x);
         minCounter.y = Math.min(minCounter.y, sample.y);
@@ -259,7 +520,7 @@ class PowderScreen {
 
                 Vector2d offset = realCenterPos.subtract(diskCenter);
                 double centerDist = offset.length();
-                if(centerDist <= diskRadius + pixelDiagonal / 2 && screen[x][y] > 0){
+                if(centerDist <= diskRadius + pixelDiagonal / 2 && screen.get(x, y) > 0){
                     // we need to calculate the proportion of the pixel that is inside the disk
                     float prop = 1;
                     if(centerDist > diskRadius - pixelDiagonal){
@@ -289,7 +550,7 @@ class PowderScreen {
         iterateScreenDisk(diskCenter, diskRadius, (x, y, realPos) -> {
             Vector2d offset = realPos.subtract(diskCenter);
             if(offset.length() <= diskRadius){
-                screen[x][y] = distribution.eval(offset.x, offset.y);
+                screen.set(x, y, distribution.eval(offset.x, offset.y));
             }
         });
     }
@@ -328,8 +589,8 @@ class PowderScreen {
     private Vector2i lowerLeftApproxIndex(Vector2d screenCoords){
         // screen[0][0] is defined to be at (0,0)
         // screen[maxX][maxY] is defined be at screenExtent 
-        int maxX = screen.length - 1;
-        int maxY = screen[0].length - 1;
+        int maxX = screen.getWidth() - 1;
+        int maxY = screen.getHeight() - 1;
         double xPercent = screenCoords.x / screenExtent.x;
         double yPercent = screenCoords.y / screenExtent.y;
 
@@ -341,21 +602,34 @@ class PowderScreen {
      * @return The pixel coordinates of the upper right approximation pixel.
      */
     private Vector2i upperRightApproxIndex(Vector2d screenCoords){
-        int maxX = screen.length - 1;
-        int maxY = screen[0].length - 1;
+        int maxX = screen.getWidth() - 1;
+        int maxY = screen.getHeight() - 1;
         double xPercent = screenCoords.x / screenExtent.x;
         double yPercent = screenCoords.y / screenExtent.y;
 
         return new Vector2i((int) Math.ceil(xPercent * maxX), (int) Math.ceil(yPercent * maxY));
     }
+    /**
+     * Finds the pixel closest to the given point.
+     * @param screenCoords Any (real) point on the etch-a-sketch.
+     * @return The pixel coordinates of the nearest approximation pixel, which may lie outside the screen.
+     */
+    private Vector2i nearestApproxIndex(Vector2d screenCoords){
+        int maxX = screen.getWidth() - 1;
+        int maxY = screen.getHeight() - 1;
+        double xPercent = screenCoords.x / screenExtent.x;
+        double yPercent = screenCoords.y / screenExtent.y;
+
+        return new Vector2i((int) Math.round(xPercent * maxX), (int) Math.round(yPercent * maxY));
+    }
     /**
      * Transforms pixel coordinates to screen coordinates.
      * @param approxCoords The (x,y) coordinates of the pixel (index in screen)
      * @return The position of the center of pixel, in screen coordinates.
      */
     private Vector2d toScreenCoords(Vector2i approxCoords){
-        int maxX = screen.length - 1;
-        int maxY = screen[0].length - 1;
+        int maxX = screen.getWidth() - 1;
+        int maxY = screen.getHeight() - 1;
 
         double propX = approxCoords.x / ((double) maxX);
         double propY = approxCoords.y / ((double) maxY);
@@ -366,11 +640,11 @@ class PowderScreen {
      * @return Retrieves the value of toScreenCoords((1,0)).x - toScreenCoords((0,0)).x
      */
     private double getApproxPixelWidth(){
-        return screenExtent.x / (screen.length - 1);
+        return screenExtent.x / (screen.getWidth() - 1);
     }
     private Vector2i clipToScreen(Vector2i point){
-        int maxX = screen.length - 1;
-        int maxY = screen[0].length - 1;
+        int maxX = screen.getWidth() - 1;
+        int maxY = screen.getHeight() - 1;
         int newX = Math.max(0, point.x);
         newX = Math.min(maxX, newX);
         int newY = Math.max(0, point.y);
@@ -384,6 +658,20 @@ class PowderScreen {
     private interface ScreenInteraction {
         void execute(int pixelX, int pixelY, Vector2d realPos);
     }
+    /**
+     * Scratch space for moveStep: where the aluminum at each pixel near the pointer is moving, and whether that 
+     * pixel has been in a layer yet. Covers halfSize pixels in every direction from the pointer.
+     */
+    private class Scratch {
+        final int halfSize;
+        final PositiondValue[][] screenData;
+        final boolean[][] screenData2;
+        Scratch(int halfSize){
+            this.halfSize = halfSize;
+            screenData = new PositiondValue[2 * halfSize + 1][2 * halfSize + 1];
+            screenData2 = new boolean[2 * halfSize + 1][2 * halfSize + 1];
+        }
+    }
     private class PositionValue {
         Vector2i position;
         float value;
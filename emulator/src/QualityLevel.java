@@ -0,0 +1,48 @@
+package emulator.src;
+
+/**
+ * How exactly the emulator follows the aluminum as it is pushed around, trading fidelity for speed.
+ *
+ * In the reference model each displaced pixel drags its neighbours along, which drag their neighbours, etc.
+ * (see PowderScreen.moveStep), and the aluminum moved is spread over the pixels in a disk around where it lands.
+ * How far the drag cascades depends on how much aluminum is around, so on dense drawings the cost of a step is
+ * hard to predict. The cheaper levels cap the cascade or replace the disk lookups with a fixed kernel.
+ *
+ * Errors grow with the density of the drawing, since every difference changes what later lines push around, so the
+ * bounds below are given by coverage: the length of the path times the pointer diameter, divided by the area of the
+ * etch-a-sketch (see QualityBenchmark). They were measured against REFERENCE with QualityBenchmark on every workload
+ * of "WorkloadGenerator dir 1 1000,10000,100000 0.005", whose 1k, 10k and 100k command files have coverages up to
+ * about .05, .5 and 5. Errors are differences of the tone mapped images (EtchASketchCanvas.toneMap, ranging .3 to
+ * .86): the worst RMS of any file, and the worst difference 99% of a file's pixels stay below. No bound is given
+ * above a coverage of 5 (the 1M and 10M command files), where the reference emulation takes hours per file and
+ * was not measured.
+ */
+public enum QualityLevel {
+    /**
+     * The full model. Everything else is compared against this.
+     */
+    REFERENCE(Integer.MAX_VALUE, false),
+    /**
+     * Drag only reaches the direct neighbours of the pixels under the pointer. About 1.6x faster.
+     * RMS error at most .021, .042 and .080 at coverages up to .05, .5 and 5; 99th percentile at most .009, .25 and .40.
+     */
+    SHALLOW(1, false),
+    /**
+     * No drag at all; the aluminum under the pointer is spread around where it lands with a fixed 3x3 kernel
+     * instead of a disk lookup. Thin ridges between closely spaced lines come out darker than they should.
+     * About 15x faster. RMS error at most .032, .069 and .135 at coverages up to .05, .5 and 5; 99th percentile at
+     * most .092 and .43 up to .5. Up to 5 the 99th percentile reaches .55, nearly the full range, so use this level
+     * for sparse drawings only.
+     */
+    KERNEL(0, true);
+
+    // how many layers of drag to follow past the pixels under the pointer
+    final int maxPropagationDepth;
+    // whether to spread moved aluminum with a fixed kernel rather than over the pixels in a disk
+    final boolean depositKernel;
+
+    QualityLevel(int maxPropagationDepth, boolean depositKernel){
+        this.maxPropagationDepth = maxPropagationDepth;
+        this.depositKernel = depositKernel;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,109 @@
+package emulator.test;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Locale;
+
+import com.google.gson.Gson;
+
+import emulator.src.EtchASketchCanvas;
+import emulator.src.EtchCommandFile;
+import emulator.src.Vector2d;
+
+/**
+ * Checks, over the files of a corpus written by WorkloadGenerator, that the history of a canvas gives the same
+ * drawings, bit for bit, as executing the commands one after another:
+ *      - Recording history (setHistoryLimit(...)) doesn't change the result.
+ *      - Undoing the last commands gives the same result as executing only the commands before them, and redoing
+ *        them gives the full result again.
+ * Prints a line per file and check, and exits with status 1 if anything differs.
+ *
+ * Usage: ConsistencyCheck corpusDir [maxCommands] [undoCommands]
+ *      Only files with at most maxCommands commands (default DEFAULT_MAX_COMMANDS) are checked. The last
+ *      undoCommands commands (default DEFAULT_UNDO_COMMANDS, at most half of each file) are undone.
+ */
+class ConsistencyCheck {
+    static final long DEFAULT_MAX_COMMANDS = 1000;
+    static final int DEFAULT_UNDO_COMMANDS = 100;
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1){
+            System.out.println("Usage: ConsistencyCheck corpusDir [maxCommands] [undoCommands]");
+            return;
+        }
+        String corpusDir = args[0];
+        long maxCommands = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_MAX_COMMANDS;
+        int undoCommands = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_UNDO_COMMANDS;
+
+        WorkloadManifest manifest = WorkloadManifest.read(corpusDir);
+        int failures = 0;
+        int checks = 0;
+        for(WorkloadManifest.Entry entry : manifest.entries){
+            if(entry.commands > maxCommands){
+                continue;
+            }
+            EtchCommandFile file;
+            try (Reader reader = new FileReader(WorkloadManifest.checkedFile(corpusDir, entry))) {
+                file = new Gson().fromJson(reader, EtchCommandFile.class);
+            }
+            int commands = file.commands.size();
+            int undo = Math.min(undoCommands, commands / 2);
+
+            EtchASketchCanvas sequential = new EtchASketchCanvas(file);
+            sequential.execute(false);
+
+            EtchASketchCanvas recorded = new EtchASketchCanvas(file);
+            recorded.setHistoryLimit(undo);
+            recorded.execute(false);
+            failures += report(entry.file, "recording history == execute()", same(sequential, recorded));
+
+            EtchASketchCanvas prefix = new EtchASketchCanvas(file);
+            prefix.push(file.commands.subList(0, commands - undo));
+            recorded.undo(undo);
+            failures += report(entry.file, "undo(" + undo + ") == first " + (commands - undo) + " commands", same(prefix, recorded));
+
+            recorded.redo(undo);
+            failures += report(entry.file, "redo(" + undo + ") == execute()", same(sequential, recorded));
+            checks += 3;
+        }
+
+        System.out.println((checks - failures) + " / " + checks + " checks passed.");
+        if(failures > 0){
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return 1 if the check failed, 0 otherwise.
+     */
+    private static int report(String file, String check, boolean passed){
+        System.out.println(String.format(Locale.ROOT, "%-36s %-44s %s", file, check, passed ? "ok" : "FAILED"));
+        return passed ? 0 : 1;
+    }
+
+    /**
+     * @return Whether both canvases have bit-identical heights and pointer locations.
+     */
+    private static boolean same(EtchASketchCanvas a, EtchASketchCanvas b){
+        Vector2d pointerA = a.getPointerLocation();
+        Vector2d pointerB = b.getPointerLocation();
+        if(Double.doubleToLongBits(pointerA.x) != Double.doubleToLongBits(pointerB.x) ||
+           Double.doubleToLongBits(pointerA.y) != Double.doubleToLongBits(pointerB.y)){
+            return false;
+        }
+        float[][] heightsA = a.getHeights();
+        float[][] heightsB = b.getHeights();
+        if(heightsA.length != heightsB.length){
+            return false;
+        }
+        for(int x = 0; x < heightsA.length; x++){
+            // Arrays.equals compares floats by their bits (floatToIntBits)
+            if(!Arrays.equals(heightsA[x], heightsB[x])){
+                return false;
+            }
+        }
+        return true;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,158 @@
+package emulator.test;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.google.gson.Gson;
+
+import emulator.src.EtchASketchCanvas;
+import emulator.src.EtchCommand;
+import emulator.src.EtchCommandFile;
+import emulator.src.QualityLevel;
+import emulator.src.Vector2d;
+
+/**
+ * Measures how much faster and how much less accurate each QualityLevel is than QualityLevel.REFERENCE, over the
+ * files of a corpus written by WorkloadGenerator. The error of a file is the difference of the tone mapped images
+ * (EtchASketchCanvas.toneMap), as RMS over all pixels, as the difference 99% of the pixels stay below and as the
+ * largest difference of any pixel. The maximum is usually the full tone range, since a few pixels at the edge of a
+ * line always end up on the other side. Everything runs on a single thread so the speedups don't depend on the
+ * machine's core count.
+ *
+ * Errors grow with how densely a file covers the screen, so every file's coverage is printed with its reference
+ * time: the length of the path times the pointer diameter, divided by the area of the etch-a-sketch. It is the
+ * number of times the pointer would sweep the whole screen if the path never overlapped itself.
+ *
+ * Usage: QualityBenchmark corpusDir [maxCommands] [levels]
+ *      Only files with at most maxCommands commands (default DEFAULT_MAX_COMMANDS) are run. levels is a comma
+ *      separated list, e.g. "SHALLOW,KERNEL"; by default every level is run.
+ */
+class QualityBenchmark {
+    static final long DEFAULT_MAX_COMMANDS = 10000;
+    // the resolution of the error histogram used to find the 99th percentile, over the tone mapped range [0, 1]
+    private static final int ERROR_BINS = 1000;
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1){
+            System.out.println("Usage: QualityBenchmark corpusDir [maxCommands] [levels]");
+            return;
+        }
+        String corpusDir = args[0];
+        long maxCommands = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_MAX_COMMANDS;
+        List<QualityLevel> levels = new ArrayList<>();
+        if(args.length > 2){
+            for(String name : args[2].split(",")){
+                levels.add(QualityLevel.valueOf(name.trim()));
+            }
+        } else {
+            for(QualityLevel level : QualityLevel.values()){
+                if(level != QualityLevel.REFERENCE){
+                    levels.add(level);
+                }
+            }
+        }
+
+        WorkloadManifest manifest = WorkloadManifest.read(corpusDir);
+        // totals per level, to summarize at the end
+        double referenceSeconds = 0;
+        double[] seconds = new double[levels.size()];
+        double[] worstRms = new double[levels.size()];
+        double[] worstP99 = new double[levels.size()];
+        double[] worstMax = new double[levels.size()];
+
+        System.out.println(String.format(Locale.ROOT, "%-36s %-10s %9s %8s %9s %9s %9s %9s", "file", "level", "seconds", "speedup", "rms", "p99", "max", "coverage"));
+        for(WorkloadManifest.Entry entry : manifest.entries){
+            if(entry.commands > maxCommands){
+                continue;
+            }
+            File file = WorkloadManifest.checkedFile(corpusDir, entry);
+            EtchCommandFile commands;
+            try (Reader reader = new FileReader(file)) {
+                commands = new Gson().fromJson(reader, EtchCommandFile.class);
+            }
+
+            long start = System.nanoTime();
+            float[][] reference = run(commands, QualityLevel.REFERENCE);
+            double time = (System.nanoTime() - start) / 1e9;
+            referenceSeconds += time;
+            System.out.println(String.format(Locale.ROOT, "%-36s %-10s %9.2f %8s %9s %9s %9s %9.3f",
+                                             entry.file, QualityLevel.REFERENCE, time, "", "", "", "", coverage(commands)));
+
+            for(int i = 0; i < levels.size(); i++){
+                start = System.nanoTime();
+                float[][] heights = run(commands, levels.get(i));
+                double levelTime = (System.nanoTime() - start) / 1e9;
+                seconds[i] += levelTime;
+
+                double squaredError = 0;
+                double maxError = 0;
+                long[] histogram = new long[ERROR_BINS + 1];
+                for(int x = 0; x < heights.length; x++){
+                    for(int y = 0; y < heights[x].length; y++){
+                        double error = Math.abs(EtchASketchCanvas.toneMap(heights[x][y]) - EtchASketchCanvas.toneMap(reference[x][y]));
+                        squaredError += error * error;
+                        maxError = Math.max(maxError, error);
+                        histogram[(int) Math.ceil(Math.min(1, error) * ERROR_BINS)]++;
+                    }
+                }
+                long pixels = (long) heights.length * heights[0].length;
+                double rms = Math.sqrt(squaredError / pixels);
+                double p99 = Math.min(maxError, percentile(histogram, pixels, .99));
+                worstRms[i] = Math.max(worstRms[i], rms);
+                worstP99[i] = Math.max(worstP99[i], p99);
+                worstMax[i] = Math.max(worstMax[i], maxError);
+                System.out.println(String.format(Locale.ROOT, "%-36s %-10s %9.2f %7.2fx %9.5f %9.5f %9.5f",
+                                                 entry.file, levels.get(i), levelTime, time / levelTime, rms, p99, maxError));
+            }
+        }
+
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "%-10s %8s %9s %9s %9s", "level", "speedup", "worst rms", "worst p99", "worst max"));
+        for(int i = 0; i < levels.size(); i++){
+            System.out.println(String.format(Locale.ROOT, "%-10s %7.2fx %9.5f %9.5f %9.5f",
+                                             levels.get(i), referenceSeconds / seconds[i], worstRms[i], worstP99[i], worstMax[i]));
+        }
+    }
+
+    /**
+     * @param histogram Counts of errors, bin i holding errors in ((i - 1) / ERROR_BINS, i / ERROR_BINS].
+     * @return The smallest bin bound that at least the given fraction of all errors lie at or below.
+     */
+    private static double percentile(long[] histogram, long total, double fraction){
+        long count = 0;
+        for(int i = 0; i < histogram.length; i++){
+            count += histogram[i];
+            if(count >= fraction * total){
+                return i / (double) ERROR_BINS;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * @return The length of the path times the pointer diameter, divided by the area of the etch-a-sketch.
+     */
+    static double coverage(EtchCommandFile commands){
+        Vector2d pointer = new Vector2d(commands.startX, commands.startY);
+        double length = 0;
+        for(EtchCommand command : commands.commands){
+            if(command.type == EtchCommand.COMMAND_TYPE.LINE){
+                length += pointer.distance(command.lineEnd);
+                pointer = command.lineEnd;
+            }
+        }
+        return length * 2 * commands.pointerRadius / (commands.etchWidth * commands.etchHeight);
+    }
+
+    private static float[][] run(EtchCommandFile commands, QualityLevel level){
+        EtchASketchCanvas canvas = new EtchASketchCanvas(commands);
+        canvas.setQuality(level);
+        canvas.execute(false);
+        return canvas.getHeights();
+    }
+}
\ No newline at end of file
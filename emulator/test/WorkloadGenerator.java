@@ -0,0 +1,459 @@
+package emulator.test;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import emulator.src.EtchCommandFileWriter;
+import emulator.src.Vector2d;
+
+/**
+ * Generates a reproducible corpus of emulator inputs for benchmarks and regression runs, along with a
+ * manifest (see WorkloadManifest). The same seed always produces byte-identical files.
+ *
+ * Every workload is made of short segments (a few pointer radii long) so that emulation cost scales with the
+ * number of commands rather than with the length of a few long lines.
+ *
+ * Usage: WorkloadGenerator outputDir [seed] [sizes] [radii] [workloads]
+ *      sizes, radii and workloads are comma separated lists, e.g. "1000,10000" "0.005" "SPIRAL,HATCHING".
+ *      If sizes and radii are both omitted, the standard corpus is generated: every workload at every size in
+ *      DEFAULT_SIZES with DEFAULT_RADIUS, plus every workload at SWEEP_SIZE with every radius in SWEEP_RADII.
+ *      Otherwise every combination of the given sizes, radii and workloads is generated.
+ */
+class WorkloadGenerator {
+    static final long DEFAULT_SEED = 42;
+    static final long[] DEFAULT_SIZES = {1000, 10000, 100000, 1000000, 10000000};
+    static final double DEFAULT_RADIUS = 0.005;
+    static final long SWEEP_SIZE = 10000;
+    static final double[] SWEEP_RADII = {0.0025, 0.005, 0.01, 0.02};
+    // same etch-a-sketch as the polar test
+    static final double ETCH_WIDTH = 2;
+    static final double ETCH_HEIGHT = 2;
+
+    enum Workload {
+        // a correlated random walk, wandering all over the screen
+        RANDOM_WALK,
+        // patches of closely spaced parallel lines at random angles, drawn back and forth
+        HATCHING,
+        // Archimedean spirals with randomly placed centers
+        SPIRAL,
+        // short random paths traced back and forth many times with a little jitter
+        RETRACE,
+        // high curvature scribbling that stays within the dark areas of a random "photo"
+        SCRIBBLE
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1){
+            System.out.println("Usage: WorkloadGenerator outputDir [seed] [sizes] [radii] [workloads]");
+            return;
+        }
+        String outputDir = args[0];
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_SEED;
+        List<Workload> workloads = new ArrayList<>();
+        if(args.length > 4){
+            for(String name : args[4].split(",")){
+                workloads.add(Workload.valueOf(name.trim()));
+            }
+        } else {
+            for(Workload workload : Workload.values()){
+                workloads.add(workload);
+            }
+        }
+
+        new File(outputDir).mkdirs();
+        WorkloadManifest manifest = new WorkloadManifest();
+        manifest.seed = seed;
+        manifest.etchWidth = ETCH_WIDTH;
+        manifest.etchHeight = ETCH_HEIGHT;
+
+        if(args.length > 2){
+            long[] sizes = parseLongs(args[2]);
+            double[] radii = args.length > 3 ? parseDoubles(args[3]) : new double[]{DEFAULT_RADIUS};
+            for(long size : sizes){
+                for(double radius : radii){
+                    for(Workload workload : workloads){
+                        manifest.entries.add(generate(outputDir, seed, workload, size, radius));
+                    }
+                }
+            }
+        } else {
+            for(long size : DEFAULT_SIZES){
+                for(Workload workload : workloads){
+                    manifest.entries.add(generate(outputDir, seed, workload, size, DEFAULT_RADIUS));
+                }
+            }
+            for(double radius : SWEEP_RADII){
+                if(radius == DEFAULT_RADIUS){
+                    continue; // already generated above
+                }
+                for(Workload workload : workloads){
+                    manifest.entries.add(generate(outputDir, seed, workload, SWEEP_SIZE, radius));
+                }
+            }
+        }
+
+        manifest.write(outputDir);
+        System.out.println("Wrote " + manifest.entries.size() + " files and " + WorkloadManifest.FILE_NAME + " to " + outputDir + ".");
+    }
+
+    /**
+     * Writes a single command file into outputDir.
+     * @return The manifest entry describing the file.
+     */
+    static WorkloadManifest.Entry generate(String outputDir, long corpusSeed, Workload workload, long size, double pointerRadius) throws IOException {
+        WorkloadManifest.Entry entry = new WorkloadManifest.Entry();
+        entry.workload = workload.name();
+        entry.commands = size;
+        entry.pointerRadius = pointerRadius;
+        entry.seed = deriveSeed(corpusSeed, workload, size, pointerRadius);
+        entry.file = String.format(Locale.ROOT, "%s_%d_r%s.json", workload.name().toLowerCase(Locale.ROOT), size, pointerRadius);
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        PathGenerator path = createPath(workload, new Random(entry.seed), pointerRadius);
+        Vector2d start = path.start();
+        try (EtchCommandFileWriter out = new EtchCommandFileWriter(
+                new BufferedWriter(new OutputStreamWriter(new DigestOutputStream(new FileOutputStream(new File(outputDir, entry.file)), digest), StandardCharsets.UTF_8)),
+                start.x, start.y, ETCH_WIDTH, ETCH_HEIGHT, pointerRadius)) {
+            for(long i = 0; i < size; i++){
+                Vector2d next = path.next();
+                out.lineTo(next.x, next.y);
+            }
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for(byte b : digest.digest()){
+            hex.append(String.format("%02x", b));
+        }
+        entry.sha256 = hex.toString();
+        System.out.println("Generated " + entry.file + ".");
+        return entry;
+    }
+
+    /**
+     * Mixes the corpus seed with the parameters of a file (SplitMix64 finalizer), so that each file gets its own
+     * seed which doesn't depend on which other files are in the corpus.
+     */
+    private static long deriveSeed(long corpusSeed, Workload workload, long size, double pointerRadius){
+        long z = corpusSeed;
+        for(long value : new long[]{workload.ordinal(), size, Double.doubleToLongBits(pointerRadius)}){
+            z += 0x9E3779B97F4A7C15L + value;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            z = z ^ (z >>> 31);
+        }
+        return z;
+    }
+
+    private static PathGenerator createPath(Workload workload, Random random, double radius){
+        switch(workload){
+            case RANDOM_WALK: return new RandomWalk(random, radius);
+            case HATCHING: return new Hatching(random, radius);
+            case SPIRAL: return new Spiral(random, radius);
+            case RETRACE: return new Retrace(random, radius);
+            case SCRIBBLE: return new Scribble(random, radius);
+            default: throw new IllegalArgumentException("Unknown workload " + workload);
+        }
+    }
+
+    private static long[] parseLongs(String list){
+        String[] parts = list.split(",");
+        long[] values = new long[parts.length];
+        for(int i = 0; i < parts.length; i++){
+            values[i] = Long.parseLong(parts[i].trim());
+        }
+        return values;
+    }
+
+    private static double[] parseDoubles(String list){
+        String[] parts = list.split(",");
+        double[] values = new double[parts.length];
+        for(int i = 0; i < parts.length; i++){
+            values[i] = Double.parseDouble(parts[i].trim());
+        }
+        return values;
+    }
+
+    /**
+     * Produces an endless path, one segment end at a time. All randomness comes from the Random given to the
+     * constructor so the path is reproducible.
+     */
+    private static abstract class PathGenerator {
+        final Random random;
+        final double radius;
+        // keep everything a few pointer radii away from the edges of the screen
+        final double margin;
+
+        PathGenerator(Random random, double radius){
+            this.random = random;
+            this.radius = radius;
+            this.margin = 4 * radius;
+        }
+
+        abstract Vector2d start();
+        abstract Vector2d next();
+
+        Vector2d randomPoint(){
+            return new Vector2d(margin + random.nextDouble() * (ETCH_WIDTH - 2 * margin),
+                                margin + random.nextDouble() * (ETCH_HEIGHT - 2 * margin));
+        }
+
+        boolean inBounds(Vector2d p){
+            return p.x >= margin && p.x <= ETCH_WIDTH - margin && p.y >= margin && p.y <= ETCH_HEIGHT - margin;
+        }
+
+        Vector2d clamp(Vector2d p){
+            return new Vector2d(Math.max(margin, Math.min(ETCH_WIDTH - margin, p.x)),
+                                Math.max(margin, Math.min(ETCH_HEIGHT - margin, p.y)));
+        }
+    }
+
+    private static class RandomWalk extends PathGenerator {
+        private Vector2d position;
+        private double heading;
+
+        RandomWalk(Random random, double radius){
+            super(random, radius);
+            position = randomPoint();
+            heading = random.nextDouble() * 2 * Math.PI;
+        }
+
+        Vector2d start(){
+            return new Vector2d(position);
+        }
+
+        Vector2d next(){
+            heading += random.nextGaussian() * 0.6;
+            double length = radius * (1 + 3 * random.nextDouble());
+            Vector2d candidate = position.add(new Vector2d(Math.cos(heading), Math.sin(heading)).multLocal(length));
+            if(!inBounds(candidate)){
+                // bounce off the walls
+                if(candidate.x < margin || candidate.x > ETCH_WIDTH - margin){
+                    heading = Math.PI - heading;
+                }
+                if(candidate.y < margin || candidate.y > ETCH_HEIGHT - margin){
+                    heading = -heading;
+                }
+                candidate = clamp(candidate);
+            }
+            position = candidate;
+            return new Vector2d(position);
+        }
+    }
+
+    private static class Hatching extends PathGenerator {
+        // the side length of a patch and the distance between hatch lines, relative to the pointer radius
+        private static final double PATCH_SIZE = 60;
+        private static final double LINE_SPACING = 2.5;
+        // each hatch line is split into segments of about this length (relative to the pointer radius)
+        private static final double SEGMENT_LENGTH = 4;
+
+        private final Vector2d first;
+        private final List<Vector2d> pending = new ArrayList<>();
+        private Vector2d patchCenter;
+
+        Hatching(Random random, double radius){
+            super(random, radius);
+            patchCenter = randomPoint();
+            hatchPatch();
+            first = pending.remove(pending.size() - 1);
+        }
+
+        Vector2d start(){
+            return new Vector2d(first);
+        }
+
+        Vector2d next(){
+            if(pending.isEmpty()){
+                // move on to a neighbouring patch
+                double direction = random.nextDouble() * 2 * Math.PI;
+                double size = PATCH_SIZE * radius;
+                patchCenter = clamp(patchCenter.add(new Vector2d(Math.cos(direction), Math.sin(direction)).multLocal(size)));
+                hatchPatch();
+            }
+            return pending.remove(pending.size() - 1);
+        }
+
+        /**
+         * Queues the segment ends of a boustrophedon hatching of the current patch, at a random angle.
+         * pending is used as a stack, so the points are pushed in reverse.
+         */
+        private void hatchPatch(){
+            double angle = random.nextDouble() * Math.PI;
+            Vector2d along = new Vector2d(Math.cos(angle), Math.sin(angle));
+            Vector2d across = new Vector2d(-along.y, along.x);
+            double half = PATCH_SIZE * radius / 2;
+            int lines = (int) (PATCH_SIZE / LINE_SPACING);
+            int segments = (int) Math.ceil(PATCH_SIZE / SEGMENT_LENGTH);
+
+            List<Vector2d> points = new ArrayList<>();
+            for(int line = 0; line <= lines; line++){
+                Vector2d lineCenter = patchCenter.add(across.mult(-half + line * LINE_SPACING * radius));
+                for(int s = 0; s <= segments; s++){
+                    double t = -half + 2 * half * s / segments;
+                    // alternate direction every line
+                    if(line % 2 == 1){
+                        t = -t;
+                    }
+                    points.add(clamp(lineCenter.add(along.mult(t))));
+                }
+            }
+            for(int i = points.size() - 1; i >= 0; i--){
+                pending.add(points.get(i));
+            }
+        }
+    }
+
+    private static class Spiral extends PathGenerator {
+        // distance between turns of the spiral, relative to the pointer radius
+        private static final double PITCH = 3;
+
+        private Vector2d center;
+        private double theta;
+        private double maxRadius;
+        private PolarPlotter.PlotterFunction spiral = (theta) -> PITCH * radius * theta / (2 * Math.PI);
+
+        Spiral(Random random, double radius){
+            super(random, radius);
+            newSpiral();
+        }
+
+        Vector2d start(){
+            return toScreenCoords(spiral.getR(theta), theta);
+        }
+
+        Vector2d next(){
+            double r = spiral.getR(theta);
+            // aim for segments of about two pointer radii
+            theta += Math.min(0.3, 2 * radius / Math.max(r, radius));
+            if(spiral.getR(theta) > maxRadius){
+                newSpiral();
+            }
+            return toScreenCoords(spiral.getR(theta), theta);
+        }
+
+        private void newSpiral(){
+            center = randomPoint();
+            maxRadius = (0.05 + random.nextDouble() * 0.25) * Math.min(ETCH_WIDTH, ETCH_HEIGHT);
+            theta = 0;
+        }
+
+        private Vector2d toScreenCoords(double r, double theta){
+            return clamp(new Vector2d(center.x + r * Math.cos(theta), center.y + r * Math.sin(theta)));
+        }
+    }
+
+    private static class Retrace extends PathGenerator {
+        // how many points each base path has, and how many times it is traced over
+        private static final int BASE_POINTS = 400;
+        private static final int PASSES = 20;
+        // how far each pass may stray from the base path, relative to the pointer radius
+        private static final double JITTER = 0.5;
+
+        private final RandomWalk walk;
+        private List<Vector2d> base = new ArrayList<>();
+        private int pass;
+        private int index;
+
+        Retrace(Random random, double radius){
+            super(random, radius);
+            walk = new RandomWalk(random, radius);
+            base.add(walk.start());
+            newBase();
+        }
+
+        Vector2d start(){
+            return new Vector2d(base.get(0));
+        }
+
+        Vector2d next(){
+            index++;
+            if(index >= base.size()){
+                index = 1;
+                pass++;
+                if(pass >= PASSES){
+                    Vector2d last = base.get(base.size() - 1);
+                    base = new ArrayList<>();
+                    base.add(last);
+                    newBase();
+                    pass = 0;
+                } else {
+                    // go back the way we came
+                    List<Vector2d> reversed = new ArrayList<>();
+                    for(int i = base.size() - 1; i >= 0; i--){
+                        reversed.add(base.get(i));
+                    }
+                    base = reversed;
+                }
+            }
+            Vector2d jitter = new Vector2d(random.nextGaussian(), random.nextGaussian()).multLocal(JITTER * radius / 2);
+            return clamp(base.get(index).add(jitter));
+        }
+
+        private void newBase(){
+            for(int i = 1; i < BASE_POINTS; i++){
+                base.add(walk.next());
+            }
+        }
+    }
+
+    private static class Scribble extends PathGenerator {
+        // the number of dark blobs in the simulated photo
+        private static final int BLOBS = 12;
+        // how likely we are to leave for another blob after each segment
+        private static final double SWITCH_PROBABILITY = 1.0 / 3000;
+
+        private final Vector2d[] blobCenters = new Vector2d[BLOBS];
+        private final double[] blobSizes = new double[BLOBS];
+        private int target;
+        private Vector2d position;
+        private double heading;
+
+        Scribble(Random random, double radius){
+            super(random, radius);
+            for(int i = 0; i < BLOBS; i++){
+                blobCenters[i] = randomPoint();
+                blobSizes[i] = (0.03 + random.nextDouble() * 0.12) * Math.min(ETCH_WIDTH, ETCH_HEIGHT);
+            }
+            target = random.nextInt(BLOBS);
+            position = new Vector2d(blobCenters[target]);
+            heading = random.nextDouble() * 2 * Math.PI;
+        }
+
+        Vector2d start(){
+            return new Vector2d(position);
+        }
+
+        Vector2d next(){
+            if(random.nextDouble() < SWITCH_PROBABILITY){
+                target = random.nextInt(BLOBS);
+            }
+            // scribble with high curvature, but steer back towards the blob the further we are from its center
+            heading += random.nextGaussian() * 0.9;
+            Vector2d toCenter = blobCenters[target].subtract(position);
+            double darkness = Math.exp(-toCenter.dot(toCenter) / (2 * blobSizes[target] * blobSizes[target]));
+            Vector2d direction = new Vector2d(Math.cos(heading), Math.sin(heading)).multLocal(darkness)
+                                    .addLocal(toCenter.normalize().multLocal(1 - darkness)).normalizeLocal();
+            heading = Math.atan2(direction.y, direction.x);
+            double length = radius * (1.5 + random.nextDouble());
+            position = clamp(position.add(direction.multLocal(length)));
+            return new Vector2d(position);
+        }
+    }
+}
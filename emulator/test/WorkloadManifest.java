@@ -0,0 +1,83 @@
+package emulator.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * The structure of the manifest.json written next to a corpus by WorkloadGenerator. Benchmarks and regression runs
+ * should go through the manifest (and check the hashes) rather than globbing the corpus folder.
+ */
+class WorkloadManifest {
+    static final String FILE_NAME = "manifest.json";
+
+    long seed; // the corpus seed given to WorkloadGenerator
+    double etchWidth; // the width of the etch-a-sketch in every file, in cm
+    double etchHeight; // the height of the etch-a-sketch in every file, in cm
+    List<Entry> entries = new ArrayList<>();
+
+    static class Entry {
+        String file; // path of the command file, relative to the manifest
+        String workload; // the name of a WorkloadGenerator.Workload
+        long commands; // the number of commands in the file
+        double pointerRadius; // the pointer radius in the file, in cm
+        long seed; // the seed the file was generated from (derived from the corpus seed)
+        String sha256; // hash of the file contents, to make sure everyone benchmarks the same inputs
+    }
+
+    static WorkloadManifest read(String corpusDir) throws IOException {
+        try (Reader reader = new FileReader(new File(corpusDir, FILE_NAME))) {
+            return new Gson().fromJson(reader, WorkloadManifest.class);
+        }
+    }
+
+    void write(String corpusDir) throws IOException {
+        try (PrintWriter out = new PrintWriter(new File(corpusDir, FILE_NAME))) {
+            out.print(new GsonBuilder().setPrettyPrinting().create().toJson(this));
+        }
+    }
+
+    /**
+     * @return The entry's file, after checking it still has the hash the manifest says it has.
+     */
+    static File checkedFile(String corpusDir, Entry entry) throws IOException {
+        File file = new File(corpusDir, entry.file);
+        String hash = sha256(file);
+        if(!hash.equals(entry.sha256)){
+            throw new IllegalStateException(entry.file + " has hash " + hash + ", but the manifest says " + entry.sha256);
+        }
+        return file;
+    }
+
+    private static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while((read = in.read(buffer)) > 0){
+                digest.update(buffer, 0, read);
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for(byte b : digest.digest()){
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}